@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.android.packageinstaller.permission.model.AppPermissionGroup;
+import com.android.packageinstaller.permission.model.AppPermissions;
+import com.android.packageinstaller.permission.model.Permission;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds the AppPermissions of a requesting app off the main thread, and keeps the last
+ * few around so an app that prompts again does not pay for them again.
+ *
+ * A cached model is reused only for the same version code, and is dropped as soon as the
+ * package changes. When any of its permissions are granted, revoked or have their flags
+ * changed, it is checked against the package manager in the background and only dropped
+ * if it no longer agrees. A prompt grants and revokes through the cached model itself, so
+ * its own changes keep the model. The package info itself is always fetched fresh, as the
+ * grant results are computed from its requested flags.
+ */
+class AppPermissionsLoader implements PackageChangeNotifier.Listener,
+        PackageChangeNotifier.PermissionsListener {
+    private static final String LOG_TAG = "AppPermissionsLoader";
+
+    private static final int MAX_CACHED = 4;
+
+    private static AppPermissionsLoader sInstance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Guarded by this. Least recently used first */
+    private final LinkedHashMap<String, CachedPermissions> mCache =
+            new LinkedHashMap<String, CachedPermissions>(MAX_CACHED, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPermissions> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    /** Bumped on every invalidation, so a model built while one happens is not cached */
+    private int mGeneration;
+
+    /** Called on the main thread */
+    interface Callback {
+        /**
+         * @param packageInfo The app's package info with permissions, null if not found
+         * @param appPermissions Its permission model, null if packageInfo is null
+         */
+        void onLoaded(PackageInfo packageInfo, AppPermissions appPermissions);
+    }
+
+    private static final class CachedPermissions {
+        final int mVersionCode;
+        final AppPermissions mAppPermissions;
+        final ErrorForwarder mOnError;
+        /** Guarded by the loader. Set while a change has not been checked yet */
+        boolean mChanged;
+        /** Guarded by the loader. Changes reported so far */
+        int mChanges;
+
+        CachedPermissions(int versionCode, AppPermissions appPermissions,
+                ErrorForwarder onError) {
+            mVersionCode = versionCode;
+            mAppPermissions = appPermissions;
+            mOnError = onError;
+        }
+    }
+
+    /**
+     * The error callback of a model, passed on to the prompt that loaded it last. Only
+     * weakly held, so a cached model does not keep a finished prompt alive.
+     */
+    private static final class ErrorForwarder implements Runnable {
+        private volatile WeakReference<Runnable> mTarget;
+
+        ErrorForwarder(Runnable target) {
+            setTarget(target);
+        }
+
+        void setTarget(Runnable target) {
+            mTarget = new WeakReference<>(target);
+        }
+
+        @Override
+        public void run() {
+            final Runnable target = mTarget.get();
+            if (target != null) {
+                target.run();
+            }
+        }
+    }
+
+    private AppPermissionsLoader(Context context) {
+        mContext = context;
+    }
+
+    static AppPermissionsLoader get(Context context) {
+        synchronized (AppPermissionsLoader.class) {
+            if (sInstance == null) {
+                sInstance = new AppPermissionsLoader(context.getApplicationContext());
+                PackageChangeNotifier notifier = PackageChangeNotifier.get(context);
+                notifier.addListener(sInstance);
+                notifier.addPermissionsListener(sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Loads the package info and permission model of the app in the background and
+     * delivers them on the main thread.
+     *
+     * @param onError Run by the model if the app is gone when it is refreshed. Only weakly
+     * held, the caller must keep it
+     */
+    void load(final String packageName, final Callback callback, final Runnable onError) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int generation;
+                synchronized (AppPermissionsLoader.this) {
+                    generation = mGeneration;
+                }
+                final PackageInfo packageInfo = getPackageInfo(packageName);
+                final AppPermissions appPermissions = packageInfo != null
+                        ? getAppPermissions(packageInfo, generation, onError) : null;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(packageInfo, appPermissions);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The cached permission model of the package, or null. A cached model is
+     * dropped on any change to the package or its permissions, so no package info is
+     * needed to trust it.
+     */
+    synchronized AppPermissions peek(String packageName) {
+        final CachedPermissions cached = mCache.get(packageName);
+        return cached != null && !cached.mChanged ? cached.mAppPermissions : null;
+    }
+
+    private PackageInfo getPackageInfo(String packageName) {
+        if (packageName == null) {
+            return null;
+        }
+        try {
+            return mContext.getPackageManager().getPackageInfo(packageName,
+                    PackageManager.GET_PERMISSIONS);
+        } catch (NameNotFoundException e) {
+            Log.i(LOG_TAG, "No package: " + packageName, e);
+            return null;
+        }
+    }
+
+    private AppPermissions getAppPermissions(PackageInfo packageInfo, int generation,
+            Runnable onError) {
+        final CachedPermissions cached = getChecked(packageInfo.packageName, packageInfo);
+        if (cached != null && cached.mVersionCode == packageInfo.versionCode) {
+            cached.mOnError.setTarget(onError);
+            return cached.mAppPermissions;
+        }
+        // Built against the application context, the model outlives any one prompt
+        final ErrorForwarder forwarder = new ErrorForwarder(onError);
+        final AppPermissions appPermissions = new AppPermissions(mContext, packageInfo, null,
+                false, forwarder);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(packageInfo.packageName, new CachedPermissions(
+                        packageInfo.versionCode, appPermissions, forwarder));
+            }
+        }
+        return appPermissions;
+    }
+
+    /**
+     * Checks a changed model against the package manager, dropping it if it is out of
+     * date. Only runs on the loader thread.
+     *
+     * @param packageInfo The package info if just fetched, null to fetch it
+     * @return The cached model if it is up to date, or null
+     */
+    private CachedPermissions getChecked(String packageName, PackageInfo packageInfo) {
+        final CachedPermissions cached;
+        final int changes;
+        synchronized (this) {
+            cached = mCache.get(packageName);
+            if (cached == null || !cached.mChanged) {
+                return cached;
+            }
+            changes = cached.mChanges;
+        }
+        if (packageInfo == null) {
+            packageInfo = getPackageInfo(packageName);
+        }
+        final boolean current = packageInfo != null
+                && packageInfo.versionCode == cached.mVersionCode
+                && isCurrent(cached.mAppPermissions, packageInfo);
+        synchronized (this) {
+            if (mCache.get(packageName) != cached) {
+                return null;
+            }
+            if (!current) {
+                mCache.remove(packageName);
+                return null;
+            }
+            if (cached.mChanges != changes) {
+                // Changed again while checking, checked again by the task queued for it
+                return null;
+            }
+            cached.mChanged = false;
+            return cached;
+        }
+    }
+
+    /**
+     * Whether the model still has the grant state and the flags the prompt reads of every
+     * permission, as the package manager has them now.
+     */
+    private boolean isCurrent(AppPermissions appPermissions, PackageInfo packageInfo) {
+        final String[] requested = packageInfo.requestedPermissions;
+        final int[] requestedFlags = packageInfo.requestedPermissionsFlags;
+        final HashMap<String, Boolean> granted = new HashMap<>();
+        for (int i = 0; requested != null && i < requested.length; i++) {
+            granted.put(requested[i],
+                    (requestedFlags[i] & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0);
+        }
+        final PackageManager packageManager = mContext.getPackageManager();
+        final UserHandle user = Process.myUserHandle();
+        for (AppPermissionGroup group : appPermissions.getPermissionGroups()) {
+            for (Permission permission : group.getPermissions()) {
+                final Boolean isGranted = granted.get(permission.getName());
+                if (isGranted == null || isGranted != permission.isGranted()) {
+                    return false;
+                }
+                final int flags = packageManager.getPermissionFlags(permission.getName(),
+                        packageInfo.packageName, user);
+                if (((flags & PackageManager.FLAG_PERMISSION_USER_FIXED) != 0)
+                                != permission.isUserFixed()
+                        || ((flags & PackageManager.FLAG_PERMISSION_POLICY_FIXED) != 0)
+                                != permission.isPolicyFixed()
+                        || ((flags & PackageManager.FLAG_PERMISSION_USER_SET) != 0)
+                                != permission.isUserSet()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void onPackageChanged(String packageName) {
+        mCache.remove(packageName);
+        mGeneration++;
+    }
+
+    @Override
+    public void onPermissionsChanged(final String packageName) {
+        synchronized (this) {
+            // A model being built may have read the old state, it is not cached
+            mGeneration++;
+            final CachedPermissions cached = mCache.get(packageName);
+            if (cached == null) {
+                return;
+            }
+            cached.mChanged = true;
+            cached.mChanges++;
+        }
+        // Checked right away, so PromptGate can use the model again before the next load
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getChecked(packageName, null);
+            }
+        });
+    }
+}
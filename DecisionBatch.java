@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import java.util.ArrayList;
+
+/**
+ * The decisions made in one permission request, held back so LottoTrader can commit
+ * them together when the request finishes, see LottoTrader.commitDecisions().
+ *
+ * Only used on the main thread. Once committed a batch is no longer changed, and
+ * DecisionLog and the results writer read it from their own threads.
+ */
+final class DecisionBatch {
+    private final ArrayList<Decision> mDecisions = new ArrayList<>();
+
+    /** One answer to one permission group's prompt */
+    static final class Decision {
+        final String mPackageName;
+        final String mAppName;
+        final String mGroupName;
+        final boolean mGranted;
+        /** The amount offered, negative if there was no offer */
+        final double mOffer;
+        final long mTime;
+
+        Decision(String packageName, String appName, String groupName, boolean granted,
+                double offer, long time) {
+            mPackageName = packageName;
+            mAppName = appName;
+            mGroupName = groupName;
+            mGranted = granted;
+            mOffer = offer;
+            mTime = time;
+        }
+    }
+
+    void add(String packageName, String appName, String groupName, boolean granted,
+            double offer) {
+        mDecisions.add(new Decision(packageName, appName, groupName, granted, offer,
+                LottoTrader.currentTimeMillis()));
+    }
+
+    void add(Decision decision) {
+        mDecisions.add(decision);
+    }
+
+    int size() {
+        return mDecisions.size();
+    }
+
+    Decision get(int index) {
+        return mDecisions.get(index);
+    }
+
+    boolean isEmpty() {
+        return mDecisions.isEmpty();
+    }
+
+    void clear() {
+        mDecisions.clear();
+    }
+}
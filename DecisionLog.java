@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The decision batches LottoTrader has committed but whose results may not be on disk
+ * yet, see LottoTrader.commitDecisions().
+ *
+ * Writing a batch here is what commits it: the file is rewritten whole to a temporary
+ * file, forced and renamed over the old one, so it holds the batch or it does not. The
+ * batch is taken out again once the results writer has forced its results. A batch still
+ * here after a restart was cut short and is replayed, see LottoTrader.load().
+ */
+class DecisionLog {
+    private static final String LOG_TAG = "LottoTrader";
+
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    /** Guarded by this. Batches in the file, in the order they were committed */
+    private final ArrayList<DecisionBatch> mPending = new ArrayList<>();
+
+    DecisionLog(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the batches a previous process left behind. They stay in the log until
+     * {@link #remove} is called for them, so a crash while replaying them loses nothing.
+     *
+     * @return The batches in the order they were committed, empty if there are none
+     */
+    synchronized ArrayList<DecisionBatch> restore() {
+        final ArrayList<DecisionBatch> restored = new ArrayList<>();
+        try {
+            read(restored);
+        } catch (FileNotFoundException e) {
+            // Nothing was cut short
+        } catch (IOException e) {
+            // The rename is atomic, so this is not a torn write but a damaged file
+            Log.w(LOG_TAG, "Ignoring unreadable " + mFile.getName(), e);
+            PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+            restored.clear();
+        }
+        mPending.addAll(restored);
+        return restored;
+    }
+
+    /**
+     * Commits a batch. Returns once it is on disk.
+     *
+     * @throws IOException If it could not be written, in which case it is not in the log
+     */
+    synchronized void add(DecisionBatch batch) throws IOException {
+        mPending.add(batch);
+        try {
+            writeLocked();
+        } catch (IOException e) {
+            mPending.remove(mPending.size() - 1);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a batch out once its results are on disk. Does nothing for a batch that is
+     * not in the log.
+     */
+    synchronized void remove(DecisionBatch batch) {
+        if (!mPending.remove(batch)) {
+            return;
+        }
+        try {
+            writeLocked();
+        } catch (IOException e) {
+            // Replayed after a restart, which finds its results already written
+            Log.w(LOG_TAG, "Could not update " + mFile.getName(), e);
+            PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+        }
+    }
+
+    private void writeLocked() throws IOException {
+        if (mPending.isEmpty()) {
+            if (mFile.exists() && !mFile.delete()) {
+                throw new IOException("Could not delete " + mFile.getName());
+            }
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            final CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(fileOut), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(VERSION);
+            out.writeInt(mPending.size());
+            for (int i = 0; i < mPending.size(); i++) {
+                final DecisionBatch batch = mPending.get(i);
+                out.writeInt(batch.size());
+                for (int j = 0; j < batch.size(); j++) {
+                    final DecisionBatch.Decision decision = batch.get(j);
+                    out.writeUTF(decision.mPackageName);
+                    out.writeUTF(decision.mAppName);
+                    out.writeUTF(decision.mGroupName);
+                    out.writeBoolean(decision.mGranted);
+                    out.writeDouble(decision.mOffer);
+                    out.writeLong(decision.mTime);
+                }
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile.getName());
+        }
+    }
+
+    private void read(ArrayList<DecisionBatch> batches) throws IOException {
+        final CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown decision log version");
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final DecisionBatch batch = new DecisionBatch();
+                final int size = in.readInt();
+                for (int j = 0; j < size; j++) {
+                    batch.add(new DecisionBatch.Decision(in.readUTF(), in.readUTF(),
+                            in.readUTF(), in.readBoolean(), in.readDouble(), in.readLong()));
+                }
+                batches.add(batch);
+            }
+            final int crc = (int) checked.getChecksum().getValue();
+            if (in.readInt() != crc) {
+                throw new IOException("Corrupt decision log");
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timer wheel that expires recent denials once their wait period is over.
+ *
+ * The wheel spans one wait period, so a denial is looked at once when its slot comes
+ * around and then dropped. Entries are (key, time of denial) pairs held in primitive
+ * arrays per slot. Whoever owns the wheel calls {@link #advance} on a timer, which keeps
+ * expiry independent of lookups.
+ */
+class DenialExpiryWheel {
+    private static final int WHEEL_SIZE = 64;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /** Shortest tick (ms), so tiny wait periods do not spin the timer */
+    private static final long MIN_TICK = 100;
+
+    private final long mWaitPeriod;
+    private final long mTickDuration;
+    private final long[][] mKeys = new long[WHEEL_SIZE][];
+    private final long[][] mTimes = new long[WHEEL_SIZE][];
+    private final int[] mCounts = new int[WHEEL_SIZE];
+    private long mCurrentTick;
+    private int mSize;
+
+    /** Receives expired entries */
+    interface Listener {
+        void onExpired(long key, long timeOfDenial);
+    }
+
+    /**
+     * @param waitPeriod How long (ms) a denial lasts, normally DENIED_WAIT_PERIOD
+     * @param now Current time (ms)
+     */
+    DenialExpiryWheel(long waitPeriod, long now) {
+        mWaitPeriod = waitPeriod;
+        mTickDuration = Math.max(MIN_TICK, (waitPeriod + WHEEL_SIZE - 1) / WHEEL_SIZE);
+        mCurrentTick = now / mTickDuration;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            mKeys[i] = new long[4];
+            mTimes[i] = new long[4];
+        }
+    }
+
+    long getTickDuration() {
+        return mTickDuration;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Schedules the denial to expire once the wait period has passed.
+     */
+    void schedule(long key, long timeOfDenial) {
+        final long deadlineTick = Math.max((timeOfDenial + mWaitPeriod) / mTickDuration,
+                mCurrentTick);
+        final int slot = (int) (deadlineTick & WHEEL_MASK);
+        final int count = mCounts[slot];
+        if (count == mKeys[slot].length) {
+            mKeys[slot] = Arrays.copyOf(mKeys[slot], count * 2);
+            mTimes[slot] = Arrays.copyOf(mTimes[slot], count * 2);
+        }
+        mKeys[slot][count] = key;
+        mTimes[slot][count] = timeOfDenial;
+        mCounts[slot] = count + 1;
+        mSize++;
+    }
+
+    /**
+     * Expires every entry whose deadline is at or before {@code now}.
+     */
+    void advance(long now, Listener listener) {
+        final long nowTick = now / mTickDuration;
+        // After a long sleep one revolution is enough to see every slot
+        long tick = Math.max(mCurrentTick, nowTick - WHEEL_MASK);
+        for (; tick <= nowTick; tick++) {
+            expireSlot((int) (tick & WHEEL_MASK), now, listener);
+        }
+        mCurrentTick = nowTick;
+    }
+
+    private void expireSlot(int slot, long now, Listener listener) {
+        final long[] keys = mKeys[slot];
+        final long[] times = mTimes[slot];
+        final int count = mCounts[slot];
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (times[i] + mWaitPeriod <= now) {
+                listener.onExpired(keys[i], times[i]);
+                mSize--;
+            } else {
+                keys[kept] = keys[i];
+                times[kept] = times[i];
+                kept++;
+            }
+        }
+        mCounts[slot] = kept;
+    }
+}
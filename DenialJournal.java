@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of LottoTrader's recent denials, the write path in front of
+ * DenialTable. Safe to append from any thread.
+ *
+ * Every denial is appended as one fixed-size record, so the cost of a write does not
+ * depend on how many packages are tracked, and the journal is forced to disk in the
+ * background right after. The table takes the same denial in place, but its mapping is
+ * only forced when the journal is compacted: once enough records pile up the journal is
+ * sealed, and on a background thread the table is forced and the sealed journal deleted.
+ *
+ * On load, the sealed journal and then the live one are replayed into the table, which
+ * is idempotent, so a crash at any point loses no denial that reached the journal.
+ * Records carry a checksum, and replay stops at the first torn or corrupt record.
+ * Expiries are not journaled: a denial brought back by a replay has run out, and is
+ * dropped again on sight.
+ */
+class DenialJournal {
+    private static final String LOG_TAG = "LottoTrader";
+
+    private static final String SEALED_SUFFIX = ".sealed";
+
+    /** crc (4) + key (8) + time of denial (8) */
+    private static final int RECORD_SIZE = 20;
+
+    /** Number of journal records after which the journal is folded into the table. */
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+    private final File mSealedFile;
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    /** Guarded by this */
+    private DenialTable mTable;
+    private FileChannel mChannel;
+    private int mRecordCount;
+    /** Records of unknown names skipped by the last restore */
+    private int mDropped;
+    private boolean mSyncScheduled;
+    private boolean mCompacting;
+
+    /**
+     * @param file The live journal, the sealed one is kept next to it
+     */
+    DenialJournal(File file) {
+        mFile = file;
+        mSealedFile = new File(file.getPath() + SEALED_SUFFIX);
+    }
+
+    /**
+     * Replays the journals left behind into the table, and opens the journal for
+     * appending. Records appended from then on are folded into this table.
+     */
+    synchronized void restore(DenialTable table) throws IOException {
+        mTable = table;
+        final boolean sealed = mSealedFile.exists();
+        mDropped = 0;
+        if (sealed) {
+            // A previous compaction never finished
+            replay(mSealedFile, table, false);
+        }
+        mRecordCount = replay(mFile, table, true);
+        if (mDropped > 0) {
+            // Their ids may be handed out again, so the records must not be replayed later.
+            // Everything else they held is in the table, fold it in right away.
+            Log.w(LOG_TAG, "Dropped " + mDropped + " journaled denials of unknown names");
+            table.sync();
+            mSealedFile.delete();
+            new RandomAccessFile(mFile, "rw").getChannel().truncate(0).close();
+            mRecordCount = 0;
+        } else if (sealed) {
+            scheduleCompactionLocked();
+        }
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        mChannel.position(mChannel.size());
+    }
+
+    /**
+     * Appends a denial already put in the table.
+     *
+     * @param key The pair's key in the table, see DenialTable.keyOf()
+     */
+    synchronized void appendDenial(long key, long timeOfDenial) throws IOException {
+        if (mChannel == null) {
+            throw new IOException("Journal not open");
+        }
+        final ByteBuffer record = mRecord;
+        record.clear();
+        record.putInt(0);
+        record.putLong(key);
+        record.putLong(timeOfDenial);
+        mCrc.reset();
+        mCrc.update(record.array(), 4, RECORD_SIZE - 4);
+        record.putInt(0, (int) mCrc.getValue());
+        record.flip();
+        final long end = mChannel.position();
+        try {
+            while (record.hasRemaining()) {
+                mChannel.write(record);
+            }
+        } catch (IOException e) {
+            // Don't leave a torn record in front of the next one
+            mChannel.truncate(end);
+            throw e;
+        }
+        scheduleSyncLocked();
+
+        mRecordCount++;
+        if (mRecordCount >= COMPACTION_THRESHOLD) {
+            sealLocked();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private void scheduleSyncLocked() {
+        if (mSyncScheduled) {
+            return;
+        }
+        mSyncScheduled = true;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FileChannel channel;
+                synchronized (DenialJournal.this) {
+                    mSyncScheduled = false;
+                    channel = mChannel;
+                }
+                if (channel == null) {
+                    return;
+                }
+                try {
+                    // Outside the lock, appends go on meanwhile
+                    channel.force(false);
+                } catch (IOException e) {
+                    // Closed by a seal, whose compaction forces the table instead
+                    if (channel.isOpen()) {
+                        Log.w(LOG_TAG, "Could not sync recent denials journal", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the live journal aside and folds it into the table in the background. Only
+     * a file rename happens on the calling thread.
+     */
+    private void sealLocked() throws IOException {
+        if (mCompacting) {
+            return;
+        }
+        if (mSealedFile.exists()) {
+            // Left by a compaction that failed. Renaming over it would lose every record
+            // not yet forced into the table, so fold it first and seal the live journal later
+            scheduleCompactionLocked();
+            return;
+        }
+        mChannel.close();
+        if (!mFile.renameTo(mSealedFile)) {
+            mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            mChannel.position(mChannel.size());
+            throw new IOException("Could not seal " + mFile.getName());
+        }
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        mRecordCount = 0;
+        scheduleCompactionLocked();
+    }
+
+    private void scheduleCompactionLocked() {
+        if (mCompacting) {
+            return;
+        }
+        mCompacting = true;
+        final DenialTable table = mTable;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Every sealed record went into the table before it was appended
+                    table.sync();
+                    if (!mSealedFile.delete() && mSealedFile.exists()) {
+                        Log.w(LOG_TAG, "Could not delete " + mSealedFile.getName());
+                    }
+                } finally {
+                    synchronized (DenialJournal.this) {
+                        mCompacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts every intact record of a journal file into the table.
+     *
+     * @param truncate Whether to cut a torn tail off the file so appends start clean
+     * @return The number of records replayed
+     */
+    private int replay(File file, DenialTable table, boolean truncate)
+            throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final CRC32 crc = new CRC32();
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            int records = 0;
+            while (true) {
+                record.clear();
+                if (!readFully(channel, record)) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record.array(), 4, RECORD_SIZE - 4);
+                if (record.getInt(0) != (int) crc.getValue()) {
+                    Log.w(LOG_TAG, "Ignoring torn tail of " + file.getName());
+                    break;
+                }
+                if (!table.putNewest(record.getLong(4), record.getLong(12))) {
+                    mDropped++;
+                }
+                records++;
+            }
+            if (truncate) {
+                channel.truncate((long) records * RECORD_SIZE);
+            }
+            return records;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Package and permission group names interned to small ids, so DenialTable can key a pair
+ * by its two ids and tell any two pairs apart exactly.
+ *
+ * Ids are handed out in order from 1 and never reused. Each new name is appended to a
+ * file with its id and forced to disk before the id is returned, so an id written to
+ * the table or the journal always has its name on disk. Records carry a checksum, and
+ * loading stops at the first torn or corrupt one. Ids lost that way, or whose name could
+ * not be written, are unknown after a restart; DenialTable drops any entry using one
+ * before it could be handed out again, see isKnown().
+ *
+ * Lookups are lock-free and safe from any thread.
+ */
+class DenialNames {
+    private static final String LOG_TAG = "LottoTrader";
+
+    /** crc (4) + id (4) + length (2), followed by the name in UTF-8 */
+    private static final int RECORD_HEADER_SIZE = 10;
+
+    /** Never a valid id, returned by {@link #idOf} for a name that has none */
+    static final int NO_ID = 0;
+
+    private final ConcurrentHashMap<String, Integer> mIds = new ConcurrentHashMap<>();
+    /** Ids read back from the file, everything else up to mNextId was handed out since */
+    private final ConcurrentHashMap<Integer, Boolean> mStored = new ConcurrentHashMap<>();
+    private final CRC32 mCrc = new CRC32();
+    /** Null for names that only live in memory. Guarded by this, like mNextId. */
+    private FileChannel mChannel;
+    private int mNextId = 1;
+    /** Ids from this one on were handed out by this instance, see isKnown() */
+    private int mFirstNewId = 1;
+
+    private DenialNames(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Reads the names file, creating it if needed, and opens it for appending.
+     */
+    static DenialNames open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final DenialNames names = new DenialNames(raf.getChannel());
+        try {
+            names.read(file.getName());
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return names;
+    }
+
+    /** Names that are not backed by a file, for when the file cannot be used. */
+    static DenialNames inMemory() {
+        return new DenialNames(null);
+    }
+
+    /**
+     * @return The id of the name, or {@link #NO_ID} if it was never interned
+     */
+    int idOf(String name) {
+        final Integer id = mIds.get(name);
+        return id != null ? id : NO_ID;
+    }
+
+    /**
+     * @return The id of the name, given one and written out first if it has none yet
+     */
+    int intern(String name) {
+        final Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            return internLocked(name, true);
+        }
+    }
+
+    /**
+     * Same as {@link #intern}, but leaves forcing the file to the caller, see sync().
+     * For interning many names at once.
+     */
+    synchronized int internUnsynced(String name) {
+        return internLocked(name, false);
+    }
+
+    /**
+     * @return Whether the id was read back from the file or handed out since. An id that
+     * is neither may be handed out again, so entries using it have to be dropped.
+     */
+    synchronized boolean isKnown(int id) {
+        return id >= mFirstNewId ? id < mNextId : mStored.containsKey(id);
+    }
+
+    synchronized void sync() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.force(false);
+        } catch (IOException e) {
+            failLocked(e);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private int internLocked(String name, boolean force) {
+        final Integer existing = mIds.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final int id = mNextId++;
+        if (mChannel != null) {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+            record.putInt(0);
+            record.putInt(id);
+            record.putShort((short) bytes.length);
+            record.put(bytes);
+            mCrc.reset();
+            mCrc.update(record.array(), 4, record.capacity() - 4);
+            record.putInt(0, (int) mCrc.getValue());
+            record.flip();
+            long end = -1;
+            try {
+                end = mChannel.position();
+                while (record.hasRemaining()) {
+                    mChannel.write(record);
+                }
+                if (force) {
+                    mChannel.force(false);
+                }
+            } catch (IOException e) {
+                if (end >= 0) {
+                    try {
+                        mChannel.truncate(end);
+                    } catch (IOException ignored) {
+                        /* Torn tail, dropped on the next load */
+                    }
+                }
+                failLocked(e);
+            }
+        }
+        // Published last, lock-free lookups only see ids that are already written out
+        mIds.put(name, id);
+        return id;
+    }
+
+    /** Goes on in memory, the ids handed out from now on are unknown after a restart. */
+    private void failLocked(IOException e) {
+        Log.w(LOG_TAG, "Could not write recent denial names, keeping them in memory", e);
+        PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+        try {
+            mChannel.close();
+        } catch (IOException ignored) {
+            /* Already failing */
+        }
+        mChannel = null;
+    }
+
+    private void read(String fileName) throws IOException {
+        final FileChannel channel = mChannel;
+        final ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+        while (data.hasRemaining() && channel.read(data) >= 0) {
+            // Read the whole file, names are short and few
+        }
+        data.flip();
+        int intact = 0;
+        int maxId = 0;
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = data.position();
+            final int crc = data.getInt();
+            final int id = data.getInt();
+            final int length = data.getShort() & 0xffff;
+            if (data.remaining() < length) {
+                break;
+            }
+            mCrc.reset();
+            mCrc.update(data.array(), start + 4, RECORD_HEADER_SIZE - 4 + length);
+            if (crc != (int) mCrc.getValue() || id <= NO_ID) {
+                break;
+            }
+            final String name = new String(data.array(), data.position(), length,
+                    StandardCharsets.UTF_8);
+            data.position(data.position() + length);
+            mIds.put(name, id);
+            mStored.put(id, Boolean.TRUE);
+            maxId = Math.max(maxId, id);
+            intact = data.position();
+        }
+        if (intact < data.limit()) {
+            Log.w(LOG_TAG, "Ignoring torn tail of " + fileName);
+            channel.truncate(intact);
+        }
+        channel.position(intact);
+        mNextId = maxId + 1;
+        mFirstNewId = mNextId;
+    }
+}
@@ -0,0 +1,677 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * LottoTrader's recent denials, kept in a memory-mapped file of fixed-size slots.
+ *
+ * A slot holds the key of a (package, permission group) pair, the two names' ids from
+ * DenialNames, and the time of the denial. Keys are compared whole, so no two pairs ever
+ * share a slot. Slots form an open-addressing table that is read and written in place,
+ * so opening it is a header check and a lookup is two id lookups and a probe through
+ * the mapping, with nothing deserialized or allocated.
+ *
+ * Changes reach the file through the mapping as they are made, but are not forced to
+ * disk one by one: that would cost an msync of the touched pages on every denial. The
+ * kernel writes them back on its own, and only sync() forces them, which DenialJournal
+ * does when it folds the journal into the table. Until then a denial is durable through
+ * its journal record, which is forced in the background. Expiries are never forced on
+ * their own, one undone by a crash is expired again on the next load.
+ *
+ * The serialized Hashtable recent denials used to be kept in is migrated into a new table
+ * when the table is first opened, see open().
+ *
+ * Safe to use from any thread. The slots are split into stripes, each a contiguous run of
+ * slots with its own lock and its own count in the header, and a key only ever lives in
+ * its stripe. Reads are optimistic and writes only lock the stripe they change. Growing
+ * the table takes every stripe's lock.
+ */
+class DenialTable {
+    private static final String LOG_TAG = "LottoTrader";
+
+    /** Returned by {@link #get} when there is no denial for the pair */
+    static final long NOT_FOUND = -1;
+
+    /** Returned by {@link #putIfWaitOver} when a denial is still in its wait period */
+    static final long REJECTED = -2;
+
+    private static final int MAGIC = 0x4C544454; // "LTDT"
+    static final int VERSION = 1;
+
+    private static final int STRIPES = 16;
+
+    /** magic (4) + version (4) + slot count (4) + stripe count (4) + size of each stripe */
+    private static final int HEADER_SIZE = 96;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int STRIPES_OFFSET = 12;
+    private static final int SIZES_OFFSET = 16;
+
+    /** key (8) + time of denial (8) */
+    private static final int SLOT_SIZE = 16;
+    private static final int TIME_OFFSET = 8;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** No real key is 0, ids start at 1, see keyOf() */
+    private static final long EMPTY = 0;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MIGRATION_SUFFIX = ".migrating";
+
+    private final StampedLock[] mLocks = new StampedLock[STRIPES];
+    private final DenialNames mNames;
+    /**
+     * Null for a table that only lives in memory. Only changed, like the fields below,
+     * with every stripe locked.
+     */
+    private File mFile;
+    private volatile ByteBuffer mSlots;
+    /** Slots in each stripe */
+    private int mStripeCapacity;
+
+    /** Visits every denial, see {@link #forEach} */
+    interface Visitor {
+        void visit(long key, long timeOfDenial);
+    }
+
+    private DenialTable(DenialNames names, File file, ByteBuffer slots) {
+        mNames = names;
+        for (int i = 0; i < STRIPES; i++) {
+            mLocks[i] = new StampedLock();
+        }
+        mFile = file;
+        mSlots = slots;
+        mStripeCapacity = slots.getInt(CAPACITY_OFFSET) / STRIPES;
+    }
+
+    /**
+     * Maps the table file, creating it if needed. A missing or unreadable table is built
+     * from the legacy snapshot if there is one, which is then deleted. Entries whose ids
+     * the names no longer know are dropped.
+     *
+     * @param file The table file
+     * @param names The names the keys in the file were made from
+     * @param legacyFile The serialized Hashtable recent denials used to be kept in
+     */
+    static DenialTable open(File file, DenialNames names, File legacyFile)
+            throws IOException {
+        final ByteBuffer slots = map(file);
+        if (slots != null) {
+            if (legacyFile.exists()) {
+                // Migrated, but stopped before the legacy file was deleted
+                legacyFile.delete();
+            }
+            final DenialTable table = new DenialTable(names, file, slots);
+            table.dropUnknown();
+            return table;
+        }
+        // Latest denial of each pair, by key
+        final HashMap<Long, Long> denials = new HashMap<>();
+        if (legacyFile.exists()) {
+            readLegacy(legacyFile, names, denials);
+        } else {
+            return new DenialTable(names, file, create(file, INITIAL_CAPACITY));
+        }
+        // Built aside, and only put in place once complete
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < denials.size() * 4) {
+            capacity *= 2;
+        }
+        final File temp = new File(file.getPath() + MIGRATION_SUFFIX);
+        final DenialTable table = new DenialTable(names, temp, create(temp, capacity));
+        for (Map.Entry<Long, Long> denial : denials.entrySet()) {
+            table.putNewest(denial.getKey(), denial.getValue());
+        }
+        table.sync();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+        table.mFile = file;
+        legacyFile.delete();
+        return table;
+    }
+
+    /** A table that is not backed by a file, for when the file cannot be used. */
+    static DenialTable inMemory() {
+        return new DenialTable(DenialNames.inMemory(), null,
+                format(ByteBuffer.allocate(bytesFor(INITIAL_CAPACITY)), INITIAL_CAPACITY));
+    }
+
+    /**
+     * @return The key of the pair, or 0 if either name was never interned, in which case
+     * the pair has no denial
+     */
+    long keyOf(String packageName, String groupName) {
+        final int packageId = mNames.idOf(packageName);
+        final int groupId = mNames.idOf(groupName);
+        if (packageId == DenialNames.NO_ID || groupId == DenialNames.NO_ID) {
+            return EMPTY;
+        }
+        return keyOf(packageId, groupId);
+    }
+
+    private static long keyOf(int packageId, int groupId) {
+        return ((long) packageId << 32) | (groupId & 0xffffffffL);
+    }
+
+    /**
+     * @return The time of the denial, or {@link #NOT_FOUND}
+     */
+    long get(String packageName, String groupName) {
+        final long key = keyOf(packageName, groupName);
+        if (key == EMPTY) {
+            return NOT_FOUND;
+        }
+        final int stripe = stripeOf(key);
+        final StampedLock lock = mLocks[stripe];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            final long time = probe(mSlots, stripe, key);
+            if (lock.validate(stamp)) {
+                return time;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return probe(mSlots, stripe, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Records a denial unless the pair was denied less than {@code waitPeriod} ms before
+     * {@code timeOfDenial}. Check and update are atomic, so of several threads denying
+     * the same pair only one gets through.
+     *
+     * @return {@link #REJECTED} if nothing was recorded, otherwise the time of the
+     * expired denial that was replaced, or {@link #NOT_FOUND} if there was none
+     */
+    long putIfWaitOver(String packageName, String groupName, long timeOfDenial,
+            long waitPeriod) {
+        final long key = keyOf(mNames.intern(packageName), mNames.intern(groupName));
+        final int stripe = stripeOf(key);
+        final StampedLock lock = mLocks[stripe];
+        final long previous;
+        final int stripeCapacity;
+        final long stamp = lock.writeLock();
+        try {
+            previous = putLocked(stripe, key, timeOfDenial, waitPeriod);
+            stripeCapacity = isCrowdedLocked(stripe) ? mStripeCapacity : 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (stripeCapacity != 0) {
+            grow(stripeCapacity);
+        }
+        return previous;
+    }
+
+    /**
+     * Puts a denial read back from disk, see DenialJournal. If the pair has a newer one,
+     * that one is kept, so putting the same denial again changes nothing.
+     *
+     * @param key A key from {@link #keyOf}
+     * @return False if the key's ids are no longer known and nothing was put
+     */
+    boolean putNewest(long key, long timeOfDenial) {
+        if (!isKnown(key)) {
+            return false;
+        }
+        final int stripe = stripeOf(key);
+        final StampedLock lock = mLocks[stripe];
+        final int stripeCapacity;
+        final long stamp = lock.writeLock();
+        try {
+            final long previous = putLocked(stripe, key, timeOfDenial, Long.MIN_VALUE);
+            if (previous > timeOfDenial) {
+                // Keep the newest denial
+                putLocked(stripe, key, previous, Long.MIN_VALUE);
+            }
+            stripeCapacity = isCrowdedLocked(stripe) ? mStripeCapacity : 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (stripeCapacity != 0) {
+            grow(stripeCapacity);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the denial for the pair, but only if it is the one made at the given time.
+     *
+     * @return True if an entry was removed
+     */
+    boolean remove(String packageName, String groupName, long timeOfDenial) {
+        final long key = keyOf(packageName, groupName);
+        return key != EMPTY && removeKey(key, timeOfDenial);
+    }
+
+    /**
+     * Same as {@link #remove}, for a key from {@link #keyOf} or {@link #forEach}.
+     */
+    boolean removeKey(long key, long timeOfDenial) {
+        final int stripe = stripeOf(key);
+        final StampedLock lock = mLocks[stripe];
+        final long stamp = lock.writeLock();
+        try {
+            final int slot = find(stripe, key);
+            if (slot < 0 || mSlots.getLong(offsetOf(slot) + TIME_OFFSET) != timeOfDenial) {
+                return false;
+            }
+            removeSlot(stripe, slot);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final long stamp = mLocks[stripe].readLock();
+            try {
+                size += mSlots.getInt(sizeOffsetOf(stripe));
+            } finally {
+                mLocks[stripe].unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Visits every denial, a straight scan of the slots. Stripes are visited one after
+     * the other, each under its own read lock, so the visitor must not change the table.
+     */
+    void forEach(Visitor visitor) {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final long stamp = mLocks[stripe].readLock();
+            try {
+                final int first = stripe * mStripeCapacity;
+                for (int slot = first; slot < first + mStripeCapacity; slot++) {
+                    final long key = mSlots.getLong(offsetOf(slot));
+                    if (key != EMPTY) {
+                        visitor.visit(key, mSlots.getLong(offsetOf(slot) + TIME_OFFSET));
+                    }
+                }
+            } finally {
+                mLocks[stripe].unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Forces the mapped slots to disk. Changes are otherwise written back by the kernel,
+     * until then only the journal has them, see DenialJournal.
+     */
+    void sync() {
+        final ByteBuffer slots = mSlots;
+        if (slots instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) slots).force();
+        }
+    }
+
+    /** Forces the slots to disk and closes the names. The table is not used after. */
+    void close() throws IOException {
+        sync();
+        mNames.close();
+    }
+
+    private boolean isKnown(long key) {
+        return mNames.isKnown((int) (key >>> 32)) && mNames.isKnown((int) key);
+    }
+
+    /**
+     * Drops the entries whose names were lost, before their ids can be handed out again
+     * and make them apply to other pairs. Only called before the table is shared.
+     */
+    private void dropUnknown() {
+        final ArrayList<Long> unknown = new ArrayList<>();
+        final ArrayList<Long> times = new ArrayList<>();
+        forEach(new Visitor() {
+            @Override
+            public void visit(long key, long timeOfDenial) {
+                if (!isKnown(key)) {
+                    unknown.add(key);
+                    times.add(timeOfDenial);
+                }
+            }
+        });
+        for (int i = 0; i < unknown.size(); i++) {
+            removeKey(unknown.get(i), times.get(i));
+        }
+        if (!unknown.isEmpty()) {
+            Log.w(LOG_TAG, "Dropped " + unknown.size() + " recent denials of unknown names");
+        }
+    }
+
+    /**
+     * Probes slots that may be changing under an optimistic read. Anything read here is
+     * thrown away unless the stamp validates, it only has to stay in bounds.
+     */
+    private static long probe(ByteBuffer slots, int stripe, long key) {
+        final int capacity = (slots.capacity() - HEADER_SIZE) / SLOT_SIZE;
+        if (Integer.bitCount(capacity) != 1 || capacity < STRIPES) {
+            return NOT_FOUND;
+        }
+        final int stripeCapacity = capacity / STRIPES;
+        final int first = stripe * stripeCapacity;
+        final int mask = stripeCapacity - 1;
+        int slot = slotFor(key, mask);
+        for (int i = 0; i < stripeCapacity; i++) {
+            final long candidate = slots.getLong(offsetOf(first + slot));
+            if (candidate == key) {
+                return slots.getLong(offsetOf(first + slot) + TIME_OFFSET);
+            }
+            if (candidate == EMPTY) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    private long putLocked(int stripe, long key, long timeOfDenial, long waitPeriod) {
+        final int first = stripe * mStripeCapacity;
+        final int mask = mStripeCapacity - 1;
+        int slot = slotFor(key, mask);
+        long candidate;
+        while ((candidate = mSlots.getLong(offsetOf(first + slot))) != EMPTY) {
+            if (candidate == key) {
+                final int offset = offsetOf(first + slot) + TIME_OFFSET;
+                final long previous = mSlots.getLong(offset);
+                if (timeOfDenial - previous < waitPeriod) {
+                    return REJECTED;
+                }
+                mSlots.putLong(offset, timeOfDenial);
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // Time before key, a slot torn by a crash reads as an old denial and expires
+        mSlots.putLong(offsetOf(first + slot) + TIME_OFFSET, timeOfDenial);
+        mSlots.putLong(offsetOf(first + slot), key);
+        final int sizeOffset = sizeOffsetOf(stripe);
+        mSlots.putInt(sizeOffset, mSlots.getInt(sizeOffset) + 1);
+        return NOT_FOUND;
+    }
+
+    /** Whether the stripe is over half full, and the table should grow */
+    private boolean isCrowdedLocked(int stripe) {
+        return mSlots.getInt(sizeOffsetOf(stripe)) * 2 > mStripeCapacity;
+    }
+
+    /** @return The slot holding the key, -1 if there is none */
+    private int find(int stripe, long key) {
+        final int first = stripe * mStripeCapacity;
+        final int mask = mStripeCapacity - 1;
+        int slot = slotFor(key, mask);
+        long candidate;
+        while ((candidate = mSlots.getLong(offsetOf(first + slot))) != EMPTY) {
+            if (candidate == key) {
+                return first + slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Backward-shift deletion, so the table never needs tombstones. */
+    private void removeSlot(int stripe, int slot) {
+        final int first = stripe * mStripeCapacity;
+        final int mask = mStripeCapacity - 1;
+        int hole = slot - first;
+        int next = (hole + 1) & mask;
+        long key;
+        while ((key = mSlots.getLong(offsetOf(first + next))) != EMPTY) {
+            final int home = slotFor(key, mask);
+            // Move the entry back if the hole lies between its home slot and where it is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mSlots.putLong(offsetOf(first + hole) + TIME_OFFSET,
+                        mSlots.getLong(offsetOf(first + next) + TIME_OFFSET));
+                mSlots.putLong(offsetOf(first + hole), key);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mSlots.putLong(offsetOf(first + hole), EMPTY);
+        final int sizeOffset = sizeOffsetOf(stripe);
+        mSlots.putInt(sizeOffset, mSlots.getInt(sizeOffset) - 1);
+    }
+
+    /**
+     * Doubles every stripe, unless another thread already grew the table. Takes the
+     * stripe locks in order, and is only called with none of them held.
+     *
+     * @param stripeCapacity The stripe capacity the caller found crowded
+     */
+    private void grow(int stripeCapacity) {
+        final long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = mLocks[i].writeLock();
+        }
+        try {
+            if (mStripeCapacity == stripeCapacity) {
+                resizeLocked(stripeCapacity * 2 * STRIPES);
+            }
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                mLocks[i].unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    /**
+     * Rehashes into a table of the given size. A file-backed table is written to a new
+     * file that replaces the old one once it is complete. If that fails the table goes on
+     * in memory, as a stripe must never fill up.
+     */
+    private void resizeLocked(int capacity) {
+        ByteBuffer slots = null;
+        if (mFile != null) {
+            final File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+            try {
+                slots = rehash(create(temp, capacity), capacity);
+                ((MappedByteBuffer) slots).force();
+                if (!temp.renameTo(mFile)) {
+                    temp.delete();
+                    throw new IOException("Could not replace " + mFile.getName());
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not grow recent denials, keeping them in memory", e);
+                PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+                slots = null;
+                mFile = null;
+            }
+        }
+        if (slots == null) {
+            slots = rehash(format(ByteBuffer.allocate(bytesFor(capacity)), capacity),
+                    capacity);
+        }
+        mSlots = slots;
+        mStripeCapacity = capacity / STRIPES;
+    }
+
+    /** Copies every entry into the empty slots, each into its own stripe. */
+    private ByteBuffer rehash(ByteBuffer slots, int capacity) {
+        final int stripeCapacity = capacity / STRIPES;
+        final int mask = stripeCapacity - 1;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            final int oldFirst = stripe * mStripeCapacity;
+            final int first = stripe * stripeCapacity;
+            for (int i = oldFirst; i < oldFirst + mStripeCapacity; i++) {
+                final long key = mSlots.getLong(offsetOf(i));
+                if (key != EMPTY) {
+                    int slot = slotFor(key, mask);
+                    while (slots.getLong(offsetOf(first + slot)) != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots.putLong(offsetOf(first + slot) + TIME_OFFSET,
+                            mSlots.getLong(offsetOf(i) + TIME_OFFSET));
+                    slots.putLong(offsetOf(first + slot), key);
+                }
+            }
+            slots.putInt(sizeOffsetOf(stripe), mSlots.getInt(sizeOffsetOf(stripe)));
+        }
+        return slots;
+    }
+
+    /**
+     * Collects the latest denial of each pair from the serialized Hashtable, interning
+     * the names it holds.
+     */
+    @SuppressWarnings("unchecked")
+    private static void readLegacy(File file, DenialNames names, HashMap<Long, Long> denials)
+            throws IOException {
+        final Hashtable<String, LinkedList<PermissionDenial>> legacy;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            legacy = (Hashtable<String, LinkedList<PermissionDenial>>)
+                    new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException e) {
+            /* Should never happen */
+            return;
+        } finally {
+            in.close();
+        }
+        for (Map.Entry<String, LinkedList<PermissionDenial>> entry : legacy.entrySet()) {
+            for (PermissionDenial pd : entry.getValue()) {
+                final Long key = keyOf(names.internUnsynced(entry.getKey()),
+                        names.internUnsynced(pd.mPermissionName));
+                final Long previous = denials.get(key);
+                if (previous == null || previous < pd.mTimeOfDenial) {
+                    denials.put(key, pd.mTimeOfDenial);
+                }
+            }
+        }
+        // Before any of the ids is written to the table
+        names.sync();
+    }
+
+    /**
+     * @return The mapped slots, or null if there is no usable table in the file
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            if (length < HEADER_SIZE) {
+                Log.w(LOG_TAG, "Recent denials table truncated, rebuilding");
+                return null;
+            }
+            final ByteBuffer slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            final int capacity = slots.getInt(CAPACITY_OFFSET);
+            if (slots.getInt(MAGIC_OFFSET) != MAGIC) {
+                Log.w(LOG_TAG, "Not a recent denials table, rebuilding");
+                return null;
+            }
+            final int version = slots.getInt(VERSION_OFFSET);
+            if (version != VERSION) {
+                Log.w(LOG_TAG, "Unknown recent denials table version " + version
+                        + ", rebuilding");
+                return null;
+            }
+            if (slots.getInt(STRIPES_OFFSET) != STRIPES || capacity < STRIPES
+                    || length != bytesFor(capacity) || Integer.bitCount(capacity) != 1) {
+                Log.w(LOG_TAG, "Recent denials table corrupt, rebuilding");
+                return null;
+            }
+            return slots;
+        } finally {
+            // The mapping stays valid once the channel is closed
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer create(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(bytesFor(capacity));
+            ByteBuffer slots = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    bytesFor(capacity));
+            return format(slots, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Writes the header. New files and buffers are all zeroes, so every slot is empty. */
+    private static ByteBuffer format(ByteBuffer slots, int capacity) {
+        slots.putInt(VERSION_OFFSET, VERSION);
+        slots.putInt(CAPACITY_OFFSET, capacity);
+        slots.putInt(STRIPES_OFFSET, STRIPES);
+        // Magic last, a table torn while being created is rebuilt
+        slots.putInt(MAGIC_OFFSET, MAGIC);
+        return slots;
+    }
+
+    private static int bytesFor(int capacity) {
+        return HEADER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int sizeOffsetOf(int stripe) {
+        return SIZES_OFFSET + stripe * 4;
+    }
+
+    /** Low bits of the spread key pick the stripe, high bits the slot in it */
+    private static int stripeOf(long key) {
+        return (int) spread(key) & (STRIPES - 1);
+    }
+
+    private static int slotFor(long key, int mask) {
+        return (int) (spread(key) >>> 32) & mask;
+    }
+
+    /** Mixes the ids, which are small and sequential, across all 64 bits */
+    private static long spread(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -27,11 +27,9 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PermissionInfo;
-import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.Icon;
-import android.hardware.camera2.utils.ArrayUtils;
 import android.os.Bundle;
 import android.provider.Settings;
 import android.text.SpannableString;
@@ -72,7 +70,9 @@ import java.nio.charset.Charset;
 import java.security.acl.LastOwnerException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.ListIterator;
 import java.util.LinkedHashMap;
@@ -86,27 +86,55 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
         {
 
     private static final String LOG_TAG = "GrantPermissionsActivity";
-    private static float LT_OFFER_CUTOFF = 2; /*Removed "final" flag to allow this number to be reassigned dynamically*/
 
 
     private String[] mRequestedPermissions;
     private int[] mGrantResults;
+    /** Index into mRequestedPermissions of each requested permission name */
+    private HashMap<String, Integer> mRequestedPermissionSlots;
     private LottoTrader lottoTrader;
 
     private LinkedHashMap<String, GroupState> mRequestGrantPermissionGroups = new LinkedHashMap<>();
+    /**
+     * The groups in prompt order, and the index of the first one that may still need an
+     * answer. Groups before the cursor are all answered, so each prompt only looks ahead.
+     */
+    private GroupState[] mPromptSequence = new GroupState[0];
+    private int mPromptCursor;
+    /** Decisions held back until the request finishes, null unless BATCH_DECISIONS */
+    private DecisionBatch mPendingDecisions;
+    /** Set by the first commitPendingDecisions(), the batch is committed only once */
+    private boolean mDecisionsCommitted;
+    /** Set once the user answered a group, see finish() */
+    private boolean mDecided;
 
     private GrantPermissionsViewHandler mViewHandler;
     private AppPermissions mAppPermissions;
+    /** The model's error callback, kept here as the loader only holds it weakly */
+    private final Runnable mOnAppPermissionsError = new Runnable() {
+        @Override
+        public void run() {
+            setResultAndFinish();
+        }
+    };
 
     boolean mResultSet;
 
+    /** PromptMetrics start of onCreate, cleared once the first group is shown */
+    private long mStartupStart;
+
     @Override
     public void onCreate(Bundle icicle) 
     {
         super.onCreate(icicle);
+        mStartupStart = PromptMetrics.start();
         setFinishOnTouchOutside(false);
 
-        lottoTrader = new LottoTrader(this);
+        // Start loading the recent denials while the rest of the prompt is set up
+        lottoTrader = LottoTrader.get(this);
+        if (LottoTrader.BATCH_DECISIONS) {
+            mPendingDecisions = new DecisionBatch();
+        }
         setTitle(R.string.permission_request_title);
 
         if (DeviceUtils.isTelevision(this)) 
@@ -135,6 +163,8 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
 
         final int requestedPermCount = mRequestedPermissions.length;
         mGrantResults = new int[requestedPermCount];
+        // Until the app's permissions are loaded, finishing reports everything denied
+        Arrays.fill(mGrantResults, PERMISSION_DENIED);
 
         if (requestedPermCount == 0) 
         {
@@ -142,11 +172,58 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
             return;
         }
 
-        PackageInfo callingPackageInfo = getCallingPackageInfo();
+        mRequestedPermissionSlots = new HashMap<>(requestedPermCount * 2);
+        for (int i = 0; i < requestedPermCount; i++) 
+        {
+            // Like a linear search, a permission requested twice maps to its first slot
+            if (!mRequestedPermissionSlots.containsKey(mRequestedPermissions[i])) 
+            {
+                mRequestedPermissionSlots.put(mRequestedPermissions[i], i);
+            }
+        }
 
         DevicePolicyManager devicePolicyManager = getSystemService(DevicePolicyManager.class);
         final int permissionPolicy = devicePolicyManager.getPermissionPolicy(null);
 
+        // A request with nothing to ask, typically an app asking again during the wait
+        // period, is answered before any view work, see PromptGate
+        final long gateStart = PromptMetrics.start();
+        final int[] gateResults = PromptGate.get(this).check(getCallingPackage(),
+                mRequestedPermissions, permissionPolicy, lottoTrader);
+        PromptMetrics.stop(PromptMetrics.PROMPT_GATE, gateStart);
+        if (gateResults != null)
+        {
+            PromptMetrics.count(PromptMetrics.PROMPTS_SKIPPED, 1);
+            mGrantResults = gateResults;
+            setResultAndFinish();
+            return;
+        }
+
+        setContentView(mViewHandler.createView());
+
+        Window window = getWindow();
+        WindowManager.LayoutParams layoutParams = window.getAttributes();
+        mViewHandler.updateWindowAttributes(layoutParams);
+        window.setAttributes(layoutParams);
+
+        // The window is up, it is filled in once the app's permissions are loaded
+        final long groupResolutionStart = PromptMetrics.start();
+        AppPermissionsLoader.get(this).load(getCallingPackage(),
+                new AppPermissionsLoader.Callback() {
+                    @Override
+                    public void onLoaded(PackageInfo packageInfo, AppPermissions appPermissions) {
+                        if (isFinishing() || isDestroyed()) {
+                            return;
+                        }
+                        onAppPermissionsLoaded(packageInfo, appPermissions, permissionPolicy,
+                                groupResolutionStart);
+                    }
+                }, mOnAppPermissionsError);
+    }
+
+    private void onAppPermissionsLoaded(PackageInfo callingPackageInfo,
+            AppPermissions appPermissions, int permissionPolicy, long groupResolutionStart)
+    {
         // If calling package is null we default to deny all.
         updateDefaultResults(callingPackageInfo, permissionPolicy);
 
@@ -156,26 +233,11 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
             return;
         }
 
-        mAppPermissions = new AppPermissions(this, callingPackageInfo, null, false,
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        setResultAndFinish();
-                    }
-                });
+        mAppPermissions = appPermissions;
 
         for (AppPermissionGroup group : mAppPermissions.getPermissionGroups()) 
         {
-            boolean groupHasRequestedPermission = false;
-            for (String requestedPermission : mRequestedPermissions) 
-            {
-                if (group.hasPermission(requestedPermission)) 
-                {
-                    groupHasRequestedPermission = true;
-                    break;
-                }
-            }
-            if (!groupHasRequestedPermission) 
+            if (!hasRequestedPermission(group)) 
             {
                 continue;
             }
@@ -229,17 +291,23 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
             }
         }
 
-        setContentView(mViewHandler.createView());
+        mPromptSequence = mRequestGrantPermissionGroups.values().toArray(
+                new GroupState[mRequestGrantPermissionGroups.size()]);
+        mPromptCursor = 0;
 
-        Window window = getWindow();
-        WindowManager.LayoutParams layoutParams = window.getAttributes();
-        mViewHandler.updateWindowAttributes(layoutParams);
-        window.setAttributes(layoutParams);
+        PromptMetrics.stop(PromptMetrics.GROUP_RESOLUTION, groupResolutionStart);
 
-        if (!showNextPermissionGroupGrantRequest()) 
-        {
-            setResultAndFinish();
-        }
+        lottoTrader.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (!showNextPermissionGroupGrantRequest()) {
+                    setResultAndFinish();
+                }
+            }
+        });
     }
 
     @Override
@@ -268,11 +336,11 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
 
     private boolean showNextPermissionGroupGrantRequest() 
     {
-        final int groupCount = mRequestGrantPermissionGroups.size();
+        final int groupCount = mPromptSequence.length;
 
-        int currentIndex = 0;
-        for (GroupState groupState : mRequestGrantPermissionGroups.values()) 
+        for (; mPromptCursor < groupCount; mPromptCursor++) 
         {
+            final GroupState groupState = mPromptSequence[mPromptCursor];
             if (groupState.mState == GroupState.STATE_UNKNOWN) 
             {
                 CharSequence appLabel = mAppPermissions.getAppLabel();
@@ -299,7 +367,9 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
                 {
 
 
-                    final Double offer = Math.random() * /*generateDynamicOffer()*/ LT_OFFER_CUTOFF /*TODO: This is where to place the new function to generate the dynamic offer*/;
+                    final Double offer = lottoTrader.generateDynamicOffer(appLabel.toString(),
+                            groupState.mGroup.getName());
+                    groupState.mOffer = offer;
                     message = new SpannableString(getString(
                             R.string.permission_warning_template, offer, appLabel,
                             groupState.mGroup.getDescription()));
@@ -317,25 +387,18 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
 
                 // Set the new grant view
                 // TODO: Use a real message for the action. We need group action APIs
-                Resources resources;
-                try 
-                {
-                    resources = getPackageManager().getResourcesForApplication(
-                            groupState.mGroup.getIconPkg());
-                } catch (NameNotFoundException e) 
-                {
-                    // Fallback to system.
-                    resources = Resources.getSystem();
+                Icon icon = GroupIconCache.get(this).getIcon(groupState.mGroup.getIconPkg(),
+                        groupState.mGroup.getIconResId());
+
+                mViewHandler.updateUi(groupState.mGroup.getName(), groupCount, mPromptCursor,
+                        icon, message, groupState.mGroup.isUserSet());
+                PromptMetrics.count(PromptMetrics.PROMPTS_SHOWN, 1);
+                if (mStartupStart != 0) {
+                    PromptMetrics.stop(PromptMetrics.PROMPT_STARTUP, mStartupStart);
+                    mStartupStart = 0;
                 }
-                int icon = groupState.mGroup.getIconResId();
-
-                mViewHandler.updateUi(groupState.mGroup.getName(), groupCount, currentIndex,
-                        Icon.createWithResource(resources, icon), message,
-                        groupState.mGroup.isUserSet());
                 return true;
             }
-
-            currentIndex++;
         }
 
         return false;
@@ -348,14 +411,35 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
             finish();
             return;
         }
+        final long start = PromptMetrics.start();
+        PromptMetrics.count(PromptMetrics.DECISIONS, 1);
         GroupState groupState = mRequestGrantPermissionGroups.get(name);
         CharSequence appLabel = mAppPermissions.getAppLabel();
-        if (groupState.mGroup != null) {
+        mDecided |= groupState.mGroup != null;
+        if (groupState.mGroup != null && mPendingDecisions != null) {
+            // Committed with the rest of the request's decisions, see finish()
             if (granted) {
                 groupState.mGroup.grantRuntimePermissions(doNotAskAgain);
                 groupState.mState = GroupState.STATE_ALLOWED;
+            } else {
+                groupState.mGroup.revokeRuntimePermissions(doNotAskAgain);
+                groupState.mState = GroupState.STATE_DENIED;
+            }
+            mPendingDecisions.add(mAppPermissions.getPackageInfo().packageName,
+                    appLabel.toString(), name, granted, groupState.mOffer);
+            updateGrantResults(groupState.mGroup);
+        } else if (groupState.mGroup != null) {
+            if (granted) {
+                groupState.mGroup.grantRuntimePermissions(doNotAskAgain);
+                groupState.mState = GroupState.STATE_ALLOWED;
+                if (groupState.mOffer >= 0) {
+                    lottoTrader.recordOfferDecision(appLabel.toString(), name,
+                            groupState.mOffer, true);
+                }
+                lottoTrader.recordGrant(mAppPermissions.getPackageInfo().packageName,
+                        appLabel.toString(), name, groupState.mOffer);
                 try {
-                    lottoTrader.addToResults(appLabel, name, true);
+                    lottoTrader.addToResults(appLabel, name, true, groupState.mOffer);
                 } catch (IOException e) {
                     Log.w("LottoTrader", "Could not write to disk");
                 }
@@ -366,7 +450,13 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
                 try {
                     if (lottoTrader.addRecentDenial(appLabel.toString(), name)){
                         // The user actually declined, instead of just pressing Cancel
-                        lottoTrader.addToResults(appLabel, name, false);
+                        lottoTrader.recordDenial(mAppPermissions.getPackageInfo().packageName,
+                                appLabel.toString(), name);
+                        if (groupState.mOffer >= 0) {
+                            lottoTrader.recordOfferDecision(appLabel.toString(), name,
+                                    groupState.mOffer, false);
+                        }
+                        lottoTrader.addToResults(appLabel, name, false, groupState.mOffer);
                     }
                 } catch (IOException e) {
                     Log.w("LottoTrader", "Could not write to disk");
@@ -377,13 +467,26 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
         if (!showNextPermissionGroupGrantRequest()) {
             setResultAndFinish();
         }
+        PromptMetrics.stop(PromptMetrics.GRANT_RESULT, start);
+    }
+
+    /**
+     * Whether the app asked for any permission of the group in this request. Looks up
+     * each permission of the group rather than each requested permission in every group.
+     */
+    private boolean hasRequestedPermission(AppPermissionGroup group) {
+        for (Permission permission : group.getPermissions()) {
+            if (mRequestedPermissionSlots.containsKey(permission.getName())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void updateGrantResults(AppPermissionGroup group) {
         for (Permission permission : group.getPermissions()) {
-            final int index = ArrayUtils.getArrayIndex(
-                    mRequestedPermissions, permission.getName());
-            if (index >= 0) {
+            final Integer index = mRequestedPermissionSlots.get(permission.getName());
+            if (index != null) {
                 mGrantResults[index] = permission.isGranted() ? PackageManager.PERMISSION_GRANTED
                         : PackageManager.PERMISSION_DENIED;
             }
@@ -405,35 +508,54 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
     @Override
     public void finish() {
         setResultIfNeeded(RESULT_CANCELED);
+        commitPendingDecisions();
+        if (mDecided) {
+            // New grants may bring the app's next revocation forward, and offers others'
+            RevocationReceiver.onDecisionsRecorded(this);
+        }
+        if (lottoTrader != null) {
+            lottoTrader.flushResults();
+        }
         super.finish();
     }
 
-    private int computePermissionGrantState(PackageInfo callingPackageInfo,
-                                            String permission, int permissionPolicy) {
-        boolean permissionRequested = false;
+    @Override
+    protected void onDestroy() {
+        // A no-op after finish(), but the activity may also be destroyed without it
+        commitPendingDecisions();
+        super.onDestroy();
+    }
 
-        for (int i = 0; i < callingPackageInfo.requestedPermissions.length; i++) {
-            if (permission.equals(callingPackageInfo.requestedPermissions[i])) {
-                permissionRequested = true;
-                if ((callingPackageInfo.requestedPermissionsFlags[i]
-                        & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
-                    return PERMISSION_GRANTED;
-                }
-                break;
-            }
+    /** Commits the held back decisions, on the first call only. */
+    private void commitPendingDecisions() {
+        if (mDecisionsCommitted) {
+            return;
+        }
+        mDecisionsCommitted = true;
+        if (mPendingDecisions == null || mPendingDecisions.isEmpty()) {
+            return;
+        }
+        try {
+            lottoTrader.commitDecisions(mPendingDecisions);
+        } catch (IOException e) {
+            Log.w("LottoTrader", "Could not write to disk");
         }
+    }
 
-        if (!permissionRequested) {
+    private int computePermissionGrantState(HashMap<String, Integer> requestedPermissionFlags,
+            PermissionInfoCache permissionInfoCache, String permission, int permissionPolicy) {
+        final Integer flags = requestedPermissionFlags.get(permission);
+        if (flags == null) {
             return PERMISSION_DENIED;
         }
+        if ((flags & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
+            return PERMISSION_GRANTED;
+        }
 
-        try {
-            PermissionInfo pInfo = getPackageManager().getPermissionInfo(permission, 0);
-            if ((pInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
-                    != PermissionInfo.PROTECTION_DANGEROUS) {
-                return PERMISSION_DENIED;
-            }
-        } catch (NameNotFoundException e) {
+        final int protectionLevel = permissionInfoCache.getProtectionLevel(permission);
+        if (protectionLevel == PermissionInfoCache.UNKNOWN_PERMISSION
+                || (protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
+                        != PermissionInfo.PROTECTION_DANGEROUS) {
             return PERMISSION_DENIED;
         }
 
@@ -447,24 +569,39 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
         }
     }
 
-    private PackageInfo getCallingPackageInfo() {
-        try {
-            return getPackageManager().getPackageInfo(getCallingPackage(),
-                    PackageManager.GET_PERMISSIONS);
-        } catch (NameNotFoundException e) {
-            Log.i(LOG_TAG, "No package: " + getCallingPackage(), e);
-            return null;
-        }
-    }
-
     private void updateDefaultResults(PackageInfo callingPackageInfo, int permissionPolicy) {
         final int requestedPermCount = mRequestedPermissions.length;
+        if (callingPackageInfo == null) {
+            for (int i = 0; i < requestedPermCount; i++) {
+                mGrantResults[i] = PERMISSION_DENIED;
+            }
+            return;
+        }
+        final HashMap<String, Integer> requestedPermissionFlags =
+                getRequestedPermissionFlags(callingPackageInfo);
+        final PermissionInfoCache permissionInfoCache = PermissionInfoCache.get(this);
         for (int i = 0; i < requestedPermCount; i++) {
-            String permission = mRequestedPermissions[i];
-            mGrantResults[i] = callingPackageInfo != null
-                    ? computePermissionGrantState(callingPackageInfo, permission, permissionPolicy)
-                    : PERMISSION_DENIED;
+            mGrantResults[i] = computePermissionGrantState(requestedPermissionFlags,
+                    permissionInfoCache, mRequestedPermissions[i], permissionPolicy);
+        }
+    }
+
+    /**
+     * Maps each permission in the app's manifest to its requested flags, keeping the
+     * first entry if one is listed twice.
+     */
+    private static HashMap<String, Integer> getRequestedPermissionFlags(PackageInfo packageInfo) {
+        final String[] permissions = packageInfo.requestedPermissions;
+        if (permissions == null) {
+            return new HashMap<>();
+        }
+        final HashMap<String, Integer> flags = new HashMap<>(permissions.length * 2);
+        for (int i = 0; i < permissions.length; i++) {
+            if (!flags.containsKey(permissions[i])) {
+                flags.put(permissions[i], packageInfo.requestedPermissionsFlags[i]);
+            }
         }
+        return flags;
     }
 
     private void setResultIfNeeded(int resultCode) {
@@ -505,223 +642,11 @@ public class GrantPermissionsActivity extends OverlayTouchActivity
 
         final AppPermissionGroup mGroup;
         int mState = STATE_UNKNOWN;
+        /** The offer shown for this group, negative if none was made */
+        double mOffer = -1;
 
         GroupState(AppPermissionGroup group) {
             mGroup = group;
         }
     }
 }
-
-/**
- * Manages the data for the LottoTrader experiment
- */
-class LottoTrader implements Serializable
-{
-
-    /** The time (ms) that a user must wait for another opportunity to allow an
-     * app's permission request, after they had previously denied it.
-     */
-    transient static public long DENIED_WAIT_PERIOD = 1 * 60 * 1000;    // 10 mins
-
-    /**
-     * Name of file for storing recent permission denials. This is read/write and its
-     * contents are kept in memory as LottoTrader will not allow an application to
-     * request a permission that was recently denied.
-     */
-    transient static private String RECENT_DENIALS_FILENAME = "recent_denials";
-
-    /**
-     * Name of file for writing the accumulating results of LottoTrader. This is only
-     * written to and constitutes the official results of LottoTrader
-     */
-    transient static private String RESULTS_FILENAME = "results.csv";
-
-    /** Used for persistent storage */
-    transient private final int serialVersionUID = 1111;
-
-    private Hashtable<String, LinkedList<PermissionDenial>> mRecentDenials = new Hashtable<>();
-    transient private Context mContext;
-
-    LottoTrader(Context _context) 
-    {
-        mContext = _context;
-        try 
-        {
-            restoreRecentDenials();
-        } 
-        catch (IOException e) 
-        {
-            Log.w("LottoTrader", "Could not read from disk");
-        }
-    }//End of LottoTrader Constructor
-
-    /**
-     * Stores a permission denial. This allows LottoTrader to determine
-     * if the app has recently asked for the permission and the user denied.
-     * If this is the case, the user will have to wait
-     *
-     * May use the return value to see if a user denied a permission or simply
-     * pressed "Cancel" because they were not given a choice. (Due to recently
-     * denying the permission). If it is the latter, the user's response is not
-     * recorded and the function returns false.
-     *
-     * @param packageName Name of app requesting
-     * @param permissionName Name of permission requested
-     * @return True if user's response was recorded, false if otherwise
-     */
-    public boolean addRecentDenial(String packageName, String permissionName) throws IOException {
-        LinkedList<PermissionDenial> deniedPermissionsForPackage = mRecentDenials.get(packageName);
-        boolean found = false;
-        if (deniedPermissionsForPackage != null) {
-            ListIterator<PermissionDenial> iter = deniedPermissionsForPackage.listIterator();
-            while (iter.hasNext()) {
-                PermissionDenial pd = iter.next();
-                if (pd.waitPeriodOver()) {
-                    iter.remove();
-                    continue;
-                }
-                if (pd.mPermissionName.equals(permissionName)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                iter.add(new PermissionDenial(permissionName));
-                saveRecentDenialsPersistent();
-                return true;
-            }
-        } else {
-            LinkedList<PermissionDenial> tmp = new LinkedList<>();
-            tmp.add(new PermissionDenial(permissionName));
-            mRecentDenials.put(packageName, tmp);
-            saveRecentDenialsPersistent();
-            return true;
-        }
-        return false;
-    }
-
-    /**
-     * Checks to see if an app requested a permission, but was denied, recently.
-     * Recently is defined by less than LottoTrader.DENIED_WAIT_PERIOD
-     *
-     * @param packageName    App requesting the permission
-     * @param permissionName Name of the permission requested
-     * @return The time in milliseconds since the permission was denied if less than the
-     * wait period, and -1 otherwise
-     */
-    public long checkIfDeniedRecently(String packageName, String permissionName) {
-        // Find any denied permissions for this package
-        LinkedList<PermissionDenial> deniedPermissionsForPackage = mRecentDenials.get(packageName);
-        if (deniedPermissionsForPackage != null) {
-            ListIterator<PermissionDenial> iter = deniedPermissionsForPackage.listIterator();
-            while (iter.hasNext()) {
-                PermissionDenial pd = iter.next();
-                if (pd.mPermissionName.equals(permissionName)) {
-                    if (pd.waitPeriodOver()) {
-                        iter.remove();
-                        return -1;
-                    } else return System.currentTimeMillis() - pd.mTimeOfDenial;
-                }
-            }
-            return -1;
-        }
-        return -1;
-    }
-
-    /**
-     * Appends a user response to the results file. If the user response in the
-     * positive, it should always be saved using this function. However, sometimes
-     * the user declines simply because they were not given a choice (because they
-     * declined very recently). This should not be counted as a user response, and
-     * so it is best to only call this function if addRecentDenial() returns true.
-     *
-     * @param appName App requesting the permission.
-     * @param permissionName The permission requested.
-     * @param userResponse How the user responded.
-     * @throws IOException Thrown if problem with writing to the disk.
-     */
-    public void addToResults(CharSequence appName, CharSequence permissionName,
-                             boolean userResponse) throws IOException {
-
-
-        /*TODO: this may be where to add the additional information to the CSV file.*/
-
-
-        File debug = mContext.getFilesDir();
-        FileOutputStream resultsOutput =
-                mContext.openFileOutput(RESULTS_FILENAME, Context.MODE_APPEND);
-        SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm");
-        String date = sdf.format(new Date());
-        String csvLine = appName.toString() + ","
-                + permissionName.toString() + ","
-                + ((userResponse) ? "true" : "false") + ","
-                + date + "\n";
-        resultsOutput.write(csvLine.getBytes("UTF-8"));
-        resultsOutput.flush();
-        resultsOutput.close();
-    }
-
-    private void restoreRecentDenials() throws IOException {
-        try {
-            // Opens & reads recent permission denials
-            FileInputStream tmpIn = mContext.openFileInput(RECENT_DENIALS_FILENAME);
-            ObjectInputStream mInputStream = new ObjectInputStream(tmpIn);
-            mRecentDenials =
-                    (Hashtable<String, LinkedList<PermissionDenial>>) mInputStream.readObject();
-            mInputStream.close();
-            tmpIn.close();
-        } catch (FileNotFoundException e){
-            // Create new file
-            new File(mContext.getFilesDir(), RECENT_DENIALS_FILENAME);
-        } catch (ClassNotFoundException e){/* Should never happen */}
-    }
-
-    private void saveRecentDenialsPersistent() throws IOException {
-        FileOutputStream tmpOut = null;
-        tmpOut = mContext.openFileOutput(RECENT_DENIALS_FILENAME, Context.MODE_PRIVATE);
-        ObjectOutputStream mOutputStream = new ObjectOutputStream(tmpOut);
-        mOutputStream.writeObject(mRecentDenials);
-        mOutputStream.close();
-        tmpOut.close();
-    }
-
-    /*How to determin the new offer to provide the user */
-    private double generateDynamicOffer()
-    {
-        /*Plaintext explanation: Create the offer by pulling in the data on the last accepted offer 
-            of the same type (location, photo, camera ect.) and use this as the upper bound by which we constrain the offer,
-            This will only happen until the user denies an offer 5 or more times in a row. After which, there will be an 
-            increase of the offer of a random amount still restricting the offer to be below $2.*/
-
-
-
-
-
-
-
-
-
-    }/*End of algorithm */
-}//End of Lotto Trader Class
-
-
-/**
- * Represents a user denying a permission request
- */
-class PermissionDenial implements Serializable 
-{
-    public String mPermissionName;
-    public long mTimeOfDenial;
-
-    PermissionDenial(String _permissionName)
-    {
-        mPermissionName = _permissionName;
-        mTimeOfDenial = System.currentTimeMillis();
-    }
-
-    public boolean waitPeriodOver()
-    {
-        final long timeSinceDenial = System.currentTimeMillis() - this.mTimeOfDenial;
-        return (timeSinceDenial >= LottoTrader.DENIED_WAIT_PERIOD) ? true : false;
-    }
-}
\ No newline at end of file
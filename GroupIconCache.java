@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.graphics.drawable.Icon;
+import android.util.LruCache;
+
+/**
+ * Process-wide LRU cache of permission group icons and the Resources they come from.
+ * Prompts keep asking for the same few icons of the same few platform packages, so this
+ * saves a getResourcesForApplication() call and an Icon per group shown. Everything of
+ * a package is evicted when it is added, removed or updated.
+ */
+class GroupIconCache implements PackageChangeNotifier.Listener {
+    private static final int MAX_RESOURCES = 8;
+    private static final int MAX_ICONS = 32;
+
+    private static GroupIconCache sInstance;
+
+    private final PackageManager mPackageManager;
+    private final LruCache<String, Resources> mResources = new LruCache<>(MAX_RESOURCES);
+    /** Keyed by icon package and resource id, see iconKey() */
+    private final LruCache<String, Icon> mIcons = new LruCache<>(MAX_ICONS);
+
+    private GroupIconCache(PackageManager packageManager) {
+        mPackageManager = packageManager;
+    }
+
+    static GroupIconCache get(Context context) {
+        synchronized (GroupIconCache.class) {
+            if (sInstance == null) {
+                sInstance = new GroupIconCache(
+                        context.getApplicationContext().getPackageManager());
+                PackageChangeNotifier.get(context).addListener(sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * @return The icon, from the system resources if the icon package cannot be found
+     */
+    Icon getIcon(String iconPkg, int iconResId) {
+        final String key = iconKey(iconPkg, iconResId);
+        Icon icon = mIcons.get(key);
+        if (icon == null) {
+            icon = Icon.createWithResource(getResources(iconPkg), iconResId);
+            mIcons.put(key, icon);
+        }
+        return icon;
+    }
+
+    private Resources getResources(String iconPkg) {
+        Resources resources = mResources.get(iconPkg);
+        if (resources == null) {
+            try {
+                resources = mPackageManager.getResourcesForApplication(iconPkg);
+            } catch (NameNotFoundException e) {
+                // Fallback to system.
+                resources = Resources.getSystem();
+            }
+            mResources.put(iconPkg, resources);
+        }
+        return resources;
+    }
+
+    @Override
+    public void onPackageChanged(String packageName) {
+        mResources.remove(packageName);
+        final String prefix = packageName + '/';
+        for (String key : mIcons.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mIcons.remove(key);
+            }
+        }
+    }
+
+    private static String iconKey(String iconPkg, int iconResId) {
+        return iconPkg + '/' + iconResId;
+    }
+}
@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Manages the data for the LottoTrader experiment
+ */
+class LottoTrader implements Serializable
+{
+
+    /** The time (ms) that a user must wait for another opportunity to allow an
+     * app's permission request, after they had previously denied it.
+     */
+    transient static public long DENIED_WAIT_PERIOD = 1 * 60 * 1000;    // 10 mins
+
+    /**
+     * Name of the file recent permission denials used to be stored in, a serialized
+     * Hashtable. Only read to migrate it into the table below.
+     */
+    transient static String RECENT_DENIALS_FILENAME = "recent_denials";
+
+    /**
+     * Name of the journal every recent denial is appended to before the table below is
+     * forced to disk. See DenialJournal
+     */
+    transient static String RECENT_DENIALS_JOURNAL_FILENAME = "recent_denials.journal";
+
+    /**
+     * Name of the file holding the package and group names the keys in the two files
+     * above are made of. See DenialNames
+     */
+    transient static String RECENT_DENIALS_NAMES_FILENAME = "recent_denials.names";
+
+    /**
+     * Name of file for storing recent permission denials. It is memory mapped and read
+     * in place, as LottoTrader will not allow an application to request a permission
+     * that was recently denied. See DenialTable
+     */
+    transient static String RECENT_DENIALS_TABLE_FILENAME = "recent_denials.table";
+
+    /**
+     * Name of file for writing the accumulating results of LottoTrader. This is only
+     * written to and constitutes the official results of LottoTrader
+     */
+    transient static private String RESULTS_FILENAME = "results.csv";
+
+    /**
+     * Name of file holding the same results in binary, columnar form along with the
+     * offer amounts. See ResultsColumnFile
+     */
+    transient static private String RESULTS_COLUMN_FILENAME = "results.bin";
+
+    /** Name of file holding the per-(app, group) threshold posteriors */
+    transient static private String OFFER_BOUNDARIES_FILENAME = "offer_boundaries";
+
+    /**
+     * Name of the file a permission request's decisions are committed to before they are
+     * applied, see commitDecisions() and DecisionLog
+     */
+    transient static private String DECISION_LOG_FILENAME = "pending_decisions";
+
+    /** Name of file holding what the trigger rules know of each grant */
+    transient static private String TRIGGER_STATE_FILENAME = "trigger_state";
+
+    /** Name of an optional file of trigger rules, see TriggerRules */
+    transient static String TRIGGER_RULES_FILENAME = "trigger_rules";
+
+    /** Offers are always below this amount (dollars) */
+    transient static public float LT_OFFER_CUTOFF = 2; /*Removed "final" flag to allow this number to be reassigned dynamically*/
+
+    /**
+     * Whether a permission request holds its decisions back and commits them all at
+     * once when it finishes, see commitDecisions(), instead of writing each as it is made
+     */
+    transient static public boolean BATCH_DECISIONS = true;
+
+    /** Used for persistent storage */
+    transient private final int serialVersionUID = 1111;
+
+    /** Source of the current time, see setClock() */
+    interface Clock
+    {
+        long currentTimeMillis();
+    }
+
+    transient static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    transient static private volatile Clock sClock = SYSTEM_CLOCK;
+
+    /** Shared by every LottoTrader, there is one results file per process */
+    transient static private ResultsWriter sResultsWriter;
+
+    /**
+     * Recent denials by (app, permission group), see DenialTable. Only in memory until
+     * the table file is opened by load().
+     */
+    transient private DenialTable mRecentDenials = DenialTable.inMemory();
+    /** Null until load() opens it, denials before that are only kept in memory */
+    transient private DenialJournal mJournal;
+    transient private Context mContext;
+    transient private final OfferBoundarySearch mBoundaries;
+    transient private final TriggerRuleEngine mTriggers;
+    transient private final DecisionLog mDecisionLog;
+
+    /**
+     * Drops denials once DENIED_WAIT_PERIOD is over, ticked on the main thread. Guards
+     * itself and mExpiryTickPosted.
+     */
+    transient private final DenialExpiryWheel mExpiryWheel =
+            new DenialExpiryWheel(DENIED_WAIT_PERIOD, currentTimeMillis());
+    transient private final Handler mHandler = new Handler(Looper.getMainLooper());
+    transient private boolean mExpiryTickPosted;
+
+    transient private final Runnable mExpiryTick = new Runnable() {
+        @Override
+        public void run() {
+            expireDenials();
+        }
+    };
+
+    transient private final DenialExpiryWheel.Listener mExpiryListener =
+            new DenialExpiryWheel.Listener() {
+        @Override
+        public void onExpired(long key, long timeOfDenial) {
+            // Does nothing if denied again since, or already dropped by a lookup
+            mRecentDenials.removeKey(key, timeOfDenial);
+        }
+    };
+
+    /** The one LottoTrader of this process, see get() */
+    transient static private LottoTrader sInstance;
+
+    /** Guarded by this. Set once the recent denials are loaded */
+    transient private boolean mLoaded;
+    transient private ArrayList<Runnable> mLoadedCallbacks = new ArrayList<>();
+
+    LottoTrader(Context _context) 
+    {
+        mContext = _context;
+        mBoundaries = new OfferBoundarySearch(
+                new File(mContext.getFilesDir(), OFFER_BOUNDARIES_FILENAME),
+                new File(mContext.getFilesDir(), RESULTS_FILENAME),
+                new File(mContext.getFilesDir(), RESULTS_COLUMN_FILENAME), LT_OFFER_CUTOFF);
+        mTriggers = new TriggerRuleEngine(
+                new File(mContext.getFilesDir(), TRIGGER_STATE_FILENAME),
+                new File(mContext.getFilesDir(), TRIGGER_RULES_FILENAME),
+                new TriggerRuleEngine.Signals() {
+                    @Override
+                    public double getGroupEstimate(String groupName) {
+                        return mBoundaries.getGroupEstimate(groupName);
+                    }
+                });
+        mDecisionLog = new DecisionLog(new File(mContext.getFilesDir(), DECISION_LOG_FILENAME));
+    }//End of LottoTrader Constructor
+
+    /**
+     * Returns the LottoTrader shared by every prompt in this process. The first call
+     * starts loading the recent denials in the background, see whenLoaded().
+     */
+    static LottoTrader get(Context context)
+    {
+        synchronized (LottoTrader.class)
+        {
+            if (sInstance == null)
+            {
+                sInstance = new LottoTrader(context.getApplicationContext());
+                sInstance.loadInBackground();
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Replaces the time every LottoTrader reads, for tools that replay weeks of prompts
+     * on a simulated clock. Set it before creating a LottoTrader.
+     */
+    static void setClock(Clock clock)
+    {
+        sClock = clock;
+    }
+
+    /** The current time as LottoTrader sees it, see setClock() */
+    static long currentTimeMillis()
+    {
+        return sClock.currentTimeMillis();
+    }
+
+    private void loadInBackground()
+    {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, "LottoTrader-load").start();
+    }
+
+    /**
+     * Reads the recent denials from disk. Runs once, normally on the load thread. Even if
+     * it fails, LottoTrader counts as loaded afterwards, so no prompt waits forever.
+     */
+    void load()
+    {
+        try
+        {
+            try 
+            {
+                restoreRecentDenials();
+            } 
+            catch (IOException e) 
+            {
+                Log.w("LottoTrader", "Could not read from disk");
+                PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+            }
+            mBoundaries.load();
+            mTriggers.load();
+            replayDecisions();
+        }
+        finally
+        {
+            ArrayList<Runnable> callbacks;
+            synchronized (this)
+            {
+                mLoaded = true;
+                callbacks = mLoadedCallbacks;
+                mLoadedCallbacks = null;
+            }
+            for (Runnable callback : callbacks)
+            {
+                mHandler.post(callback);
+            }
+        }
+    }
+
+    /** Whether the recent denials are loaded, see whenLoaded() */
+    synchronized boolean isLoaded()
+    {
+        return mLoaded;
+    }
+
+    /**
+     * Runs the callback on the main thread once the recent denials are loaded: right
+     * away if they already are, otherwise as soon as the load thread is done. Must be
+     * called on the main thread, and no other method may be used before the callback.
+     */
+    void whenLoaded(Runnable callback)
+    {
+        synchronized (this)
+        {
+            if (!mLoaded)
+            {
+                mLoadedCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Stores a permission denial. This allows LottoTrader to determine
+     * if the app has recently asked for the permission and the user denied.
+     * If this is the case, the user will have to wait
+     *
+     * May use the return value to see if a user denied a permission or simply
+     * pressed "Cancel" because they were not given a choice. (Due to recently
+     * denying the permission). If it is the latter, the user's response is not
+     * recorded and the function returns false.
+     *
+     * @param packageName Name of app requesting
+     * @param permissionName Name of permission requested
+     * @return True if user's response was recorded, false if otherwise
+     */
+    public boolean addRecentDenial(String packageName, String permissionName) throws IOException {
+        final long start = PromptMetrics.start();
+        try {
+            return addRecentDenialTimed(packageName, permissionName, currentTimeMillis(),
+                    DENIED_WAIT_PERIOD);
+        } finally {
+            PromptMetrics.stop(PromptMetrics.DENIAL_PERSIST, start);
+        }
+    }
+
+    /**
+     * Records a denial unless the pair was denied less than waitPeriod ms before it.
+     * With a wait period of 0, putting the same denial again changes nothing.
+     *
+     * @return Whether the denial was recorded
+     */
+    private boolean addRecentDenialTimed(String packageName, String permissionName,
+            long timeOfDenial, long waitPeriod) {
+        // Check and record in one step, so concurrent callers can't both get true
+        final long previousDenial = mRecentDenials.putIfWaitOver(packageName, permissionName,
+                timeOfDenial, waitPeriod);
+        if (previousDenial == DenialTable.REJECTED) {
+            return false;
+        }
+        final long key = mRecentDenials.keyOf(packageName, permissionName);
+        if (mJournal != null) {
+            try {
+                mJournal.appendDenial(key, timeOfDenial);
+            } catch (IOException e) {
+                // Still in effect, but lost if the process dies before the table is forced
+                Log.w("LottoTrader", "Could not journal a denial", e);
+                PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+            }
+        }
+        scheduleExpiry(key, timeOfDenial);
+        return true;
+    }
+
+    /**
+     * Checks to see if an app requested a permission, but was denied, recently.
+     * Recently is defined by less than LottoTrader.DENIED_WAIT_PERIOD
+     *
+     * @param packageName    App requesting the permission
+     * @param permissionName Name of the permission requested
+     * @return The time in milliseconds since the permission was denied if less than the
+     * wait period, and -1 otherwise
+     */
+    public long checkIfDeniedRecently(String packageName, String permissionName) {
+        final long timeOfDenial = mRecentDenials.get(packageName, permissionName);
+        if (timeOfDenial == DenialTable.NOT_FOUND) {
+            return -1;
+        }
+        if (PermissionDenial.waitPeriodOver(timeOfDenial)) {
+            mRecentDenials.remove(packageName, permissionName, timeOfDenial);
+            return -1;
+        }
+        return currentTimeMillis() - timeOfDenial;
+    }
+
+    /**
+     * Appends a user response to the results file. If the user response in the
+     * positive, it should always be saved using this function. However, sometimes
+     * the user declines simply because they were not given a choice (because they
+     * declined very recently). This should not be counted as a user response, and
+     * so it is best to only call this function if addRecentDenial() returns true.
+     *
+     * The line is written by a background thread, see ResultsWriter.
+     *
+     * @param appName App requesting the permission.
+     * @param permissionName The permission requested.
+     * @param userResponse How the user responded.
+     * @throws IOException Thrown if interrupted while the results queue is full.
+     */
+    public void addToResults(CharSequence appName, CharSequence permissionName,
+                             boolean userResponse) throws IOException {
+        addToResults(appName, permissionName, userResponse, ResultsColumnFile.NO_OFFER);
+    }
+
+    /**
+     * Same as above, also recording the amount that was offered. The CSV line is
+     * unchanged, the offer only goes to the columnar results file (results.bin).
+     *
+     * @param offer The amount offered, negative if there was no offer.
+     */
+    public void addToResults(CharSequence appName, CharSequence permissionName,
+                             boolean userResponse, double offer) throws IOException {
+        final long start = PromptMetrics.start();
+        getResultsWriter().append(appName.toString(), permissionName.toString(),
+                userResponse, currentTimeMillis(),
+                offer >= 0 ? (float) offer : ResultsColumnFile.NO_OFFER);
+        PromptMetrics.stop(PromptMetrics.RESULT_APPEND, start);
+    }
+
+    /**
+     * Records every decision of a finished permission request at once, see
+     * BATCH_DECISIONS. A denial that was only a Cancel during the wait period is dropped,
+     * and the batch is cleared.
+     *
+     * The rest of the decisions are first written to the decision log, see DecisionLog,
+     * which commits them as a whole. Only then are they applied: the denials are recorded
+     * as addRecentDenial() would, the trigger rules and offers are updated, and the
+     * results are queued as one chain that the writer forces in a single write. The
+     * batch leaves the log once its results are on disk. A crash before that replays it on
+     * the next load, so the denials and the results of a request are kept together or
+     * not at all. If the log cannot be written the decisions are still applied, as
+     * before.
+     *
+     * Like every prompt this runs on the main thread, which is what keeps the wait period
+     * check and recording the denial together.
+     *
+     * @throws IOException Thrown if interrupted while the results queue is full.
+     */
+    void commitDecisions(DecisionBatch batch) throws IOException
+    {
+        final long start = PromptMetrics.start();
+        final DecisionBatch recorded = new DecisionBatch();
+        for (int i = 0; i < batch.size(); i++)
+        {
+            final DecisionBatch.Decision decision = batch.get(i);
+            if (!decision.mGranted && !isWaitOver(decision))
+            {
+                continue;
+            }
+            recorded.add(decision);
+        }
+        batch.clear();
+        if (recorded.isEmpty())
+        {
+            PromptMetrics.stop(PromptMetrics.RESULT_APPEND, start);
+            return;
+        }
+        try
+        {
+            mDecisionLog.add(recorded);
+        }
+        catch (IOException e)
+        {
+            Log.w("LottoTrader", "Could not log decisions", e);
+            PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+        }
+        applyDecisions(recorded, true);
+        getResultsWriter().appendAll(recorded, removeWhenWritten(recorded));
+        PromptMetrics.stop(PromptMetrics.RESULT_APPEND, start);
+    }
+
+    /** Whether a denial is a real one, and not a Cancel during the wait period */
+    private boolean isWaitOver(DecisionBatch.Decision denial)
+    {
+        final long previousDenial = mRecentDenials.get(denial.mAppName, denial.mGroupName);
+        return previousDenial == DenialTable.NOT_FOUND
+                || denial.mTime - previousDenial >= DENIED_WAIT_PERIOD;
+    }
+
+    /**
+     * Applies committed decisions. Everything but the offers can be applied again without
+     * changing anything, which is what lets replayDecisions() redo a batch.
+     */
+    private void applyDecisions(DecisionBatch batch, boolean updateOffers)
+    {
+        for (int i = 0; i < batch.size(); i++)
+        {
+            final DecisionBatch.Decision decision = batch.get(i);
+            if (!decision.mGranted)
+            {
+                final long denialStart = PromptMetrics.start();
+                // Keeps the newest denial, the wait period was checked before committing
+                addRecentDenialTimed(decision.mAppName, decision.mGroupName, decision.mTime,
+                        0);
+                PromptMetrics.stop(PromptMetrics.DENIAL_PERSIST, denialStart);
+                mTriggers.onDenied(decision.mPackageName, decision.mAppName,
+                        decision.mGroupName, decision.mTime);
+            }
+            else
+            {
+                mTriggers.onGranted(decision.mPackageName, decision.mAppName,
+                        decision.mGroupName, decision.mOffer, decision.mTime);
+            }
+            if (updateOffers && decision.mOffer >= 0)
+            {
+                recordOfferDecision(decision.mAppName, decision.mGroupName, decision.mOffer,
+                        decision.mGranted);
+            }
+        }
+    }
+
+    private Runnable removeWhenWritten(final DecisionBatch batch)
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mDecisionLog.remove(batch);
+            }
+        };
+    }
+
+    /**
+     * Redoes the batches commitDecisions() had logged but whose results did not make it
+     * to disk before the process died. Their denials and trigger updates are applied
+     * again, and their results queued unless the results file already has them. The
+     * offers are left alone: their state is saved on its own and may well have the
+     * answers already, and the offer search is not idempotent.
+     */
+    private void replayDecisions()
+    {
+        final ArrayList<DecisionBatch> batches = mDecisionLog.restore();
+        for (int i = 0; i < batches.size(); i++)
+        {
+            final DecisionBatch batch = batches.get(i);
+            applyDecisions(batch, false);
+            if (getResultsWriter().isWritten(batch))
+            {
+                mDecisionLog.remove(batch);
+                continue;
+            }
+            try
+            {
+                getResultsWriter().appendAll(batch, removeWhenWritten(batch));
+            }
+            catch (IOException e)
+            {
+                // Still logged, replayed again by the next load
+                Log.w("LottoTrader", "Could not replay decisions", e);
+                PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+            }
+        }
+        if (!batches.isEmpty())
+        {
+            Log.w("LottoTrader", "Replayed " + batches.size() + " decision batches");
+        }
+    }
+
+    /**
+     * Tells the trigger rules the user granted a permission group, see TriggerRuleEngine.
+     * Not needed for decisions committed by commitDecisions().
+     *
+     * @param offer The offer accepted, negative if there was none
+     */
+    void recordGrant(String packageName, String appName, String permissionGroup, double offer)
+    {
+        mTriggers.onGranted(packageName, appName, permissionGroup, offer,
+                currentTimeMillis());
+    }
+
+    /**
+     * Tells the trigger rules the user denied a permission group. Only for denials
+     * addRecentDenial() recorded, not needed for decisions committed by commitDecisions().
+     */
+    void recordDenial(String packageName, String appName, String permissionGroup)
+    {
+        mTriggers.onDenied(packageName, appName, permissionGroup, currentTimeMillis());
+    }
+
+    /** The rules deciding when a grant is taken away again */
+    TriggerRuleEngine getTriggers()
+    {
+        return mTriggers;
+    }
+
+    /** The per-app offer estimates, read without counting towards offer_generation */
+    OfferBoundarySearch getBoundaries()
+    {
+        return mBoundaries;
+    }
+
+    /**
+     * Asks for every queued result to be written out. Does not wait for the disk.
+     */
+    public void flushResults() {
+        getResultsWriter().flush();
+    }
+
+    /**
+     * Writes every queued result out and waits until it is on disk. Only for tools, a
+     * prompt never waits for the results file.
+     */
+    void awaitResults() throws InterruptedException {
+        getResultsWriter().flushAndWait();
+    }
+
+    /**
+     * Stops the expiry timer, writes the recent denials out and closes the journal. Only
+     * for tools that create more than one LottoTrader in a process, the shared instance
+     * is never closed.
+     */
+    void close() throws IOException {
+        synchronized (mExpiryWheel) {
+            mHandler.removeCallbacks(mExpiryTick);
+            mExpiryTickPosted = false;
+        }
+        mRecentDenials.close();
+        if (mJournal != null) {
+            mJournal.close();
+        }
+    }
+
+    private ResultsWriter getResultsWriter() {
+        synchronized (LottoTrader.class) {
+            if (sResultsWriter == null) {
+                sResultsWriter = new ResultsWriter(
+                        new File(mContext.getFilesDir(), RESULTS_FILENAME),
+                        new File(mContext.getFilesDir(), RESULTS_COLUMN_FILENAME));
+            }
+            return sResultsWriter;
+        }
+    }
+
+    private void restoreRecentDenials() throws IOException {
+        final long start = PromptMetrics.start();
+        final DenialNames names = DenialNames.open(
+                new File(mContext.getFilesDir(), RECENT_DENIALS_NAMES_FILENAME));
+        // Mapped and read in place, migrated from the legacy file the first time
+        final DenialTable table = DenialTable.open(
+                new File(mContext.getFilesDir(), RECENT_DENIALS_TABLE_FILENAME), names,
+                new File(mContext.getFilesDir(), RECENT_DENIALS_FILENAME));
+        // Denials journaled but maybe not in the table on disk yet
+        final DenialJournal journal = new DenialJournal(
+                new File(mContext.getFilesDir(), RECENT_DENIALS_JOURNAL_FILENAME));
+        journal.restore(table);
+        mRecentDenials = table;
+        mJournal = journal;
+        PromptMetrics.stop(PromptMetrics.DENIAL_RESTORE, start);
+        // Denials that ran out while we were not running go on the first tick
+        mRecentDenials.forEach(new DenialTable.Visitor() {
+            @Override
+            public void visit(long key, long timeOfDenial) {
+                scheduleExpiry(key, timeOfDenial);
+            }
+        });
+    }
+
+    private void scheduleExpiry(long key, long timeOfDenial) {
+        synchronized (mExpiryWheel) {
+            mExpiryWheel.schedule(key, timeOfDenial);
+            scheduleExpiryTickLocked();
+        }
+    }
+
+    /** Also called by tools on a simulated clock, where the expiry timer runs too late */
+    void expireDenials() {
+        synchronized (mExpiryWheel) {
+            mExpiryTickPosted = false;
+            mExpiryWheel.advance(currentTimeMillis(), mExpiryListener);
+            scheduleExpiryTickLocked();
+        }
+    }
+
+    private void scheduleExpiryTickLocked() {
+        if (!mExpiryTickPosted && mExpiryWheel.size() > 0) {
+            mExpiryTickPosted = true;
+            mHandler.postDelayed(mExpiryTick, mExpiryWheel.getTickDuration());
+        }
+    }
+
+    /**
+     * Offer for one app's permission group: the current estimate of the least this user
+     * will accept for it, which each answer narrows down. See OfferBoundarySearch.
+     *
+     * @param appName The app asking, as passed to addToResults()
+     * @param permissionGroup The permission group asked for
+     */
+    double generateDynamicOffer(String appName, String permissionGroup)
+    {
+        final long start = PromptMetrics.start();
+        final double offer = mBoundaries.generateOffer(appName, permissionGroup);
+        PromptMetrics.stop(PromptMetrics.OFFER_GENERATION, start);
+        return offer;
+    }
+
+    /**
+     * Feeds the user's answer to an offer back into the offer search, narrowing down the
+     * app's threshold for the group. Like addToResults(), only call this for a real
+     * answer, not for a Cancel during the wait period.
+     *
+     * @param appName The app the offer was made to
+     * @param permissionGroup The permission group the offer was for
+     * @param offer The amount offered
+     * @param accepted Whether the user allowed the permission
+     */
+    void recordOfferDecision(String appName, String permissionGroup, double offer,
+            boolean accepted)
+    {
+        mBoundaries.onDecision(appName, permissionGroup, offer, accepted);
+    }
+}//End of Lotto Trader Class
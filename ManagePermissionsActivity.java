@@ -65,6 +65,11 @@ public final class ManagePermissionsActivity extends OverlayTouchActivity {
                     fragment = com.android.packageinstaller.permission.ui.handheld
                             .AppPermissionsFragment.newInstance(packageName);
                 }
+                // The app's groups from the index, if it is ready, see putGroups()
+                if (fragment.getArguments() != null) {
+                    PermissionAppsIndex.get(this).putGroups(fragment.getArguments(),
+                            packageName);
+                }
             } break;
 
             case Intent.ACTION_MANAGE_PERMISSION_APPS: {
@@ -81,6 +86,12 @@ public final class ManagePermissionsActivity extends OverlayTouchActivity {
                     fragment = com.android.packageinstaller.permission.ui.handheld
                             .PermissionAppsFragment.newInstance(permissionName);
                 }
+                // The group's apps from the index instead of every installed package, if
+                // it is ready, see putApps()
+                if (fragment.getArguments() != null) {
+                    PermissionAppsIndex.get(this).putApps(fragment.getArguments(),
+                            permissionName);
+                }
             } break;
 
             default: {
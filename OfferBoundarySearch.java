@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Searches for each user's accept threshold per (app, permission group) by probabilistic
+ * bisection.
+ *
+ * Every pair keeps a posterior over its threshold: {@link #BINS} equal bins between 0
+ * and the cutoff, starting out uniform. The offer is the posterior median. An accept at x
+ * says the threshold is at most x and a deny says it is above, each trusted with
+ * probability 1 - {@link #ERROR_RATE}, so a user who answers inconsistently slows the
+ * search down instead of derailing it. Every answer roughly halves the uncertainty,
+ * where uniform random offers learn little. Updates are O(BINS), and at most
+ * {@link #MAX_PAIRS} pairs are kept, least recently prompted dropped first.
+ *
+ * Each permission group also keeps a posterior fed by the answers of every app, the
+ * group-wide estimate. A pair seen for the first time starts out from it, mixed with a
+ * uniform posterior so one group's habits do not bind a new app.
+ *
+ * Next to its posterior, every pair and group keeps running bounds: the last accepted
+ * offer, the denials in a row and the highest offer denied since the last accept. The
+ * offer is the posterior median between the bounds. It never goes above the last
+ * accepted offer, as the user took that already, until {@link #DENIALS_BEFORE_RAISE}
+ * denials in a row; then it is searched for above both the last accept and everything
+ * denied. A new pair takes its group's last accepted offer as its first bound.
+ *
+ * When there is no saved state, it is rebuilt on load by replaying the results: the
+ * columnar results, rotated ones first, where there are any, as they hold the offers,
+ * otherwise results.csv,
+ * from which only the runs of denials can be recovered.
+ */
+class OfferBoundarySearch {
+    private static final String LOG_TAG = "LottoTrader";
+
+    static final int BINS = 32;
+
+    /** Probability an answer is on the wrong side of the user's threshold */
+    static final float ERROR_RATE = 0.15f;
+
+    /** Least mass of a bin, so a run of answers one way can always be undone */
+    private static final float MIN_MASS = 1e-6f;
+
+    static final int MAX_PAIRS = 512;
+
+    /** Share of a new pair's posterior taken from its group, the rest is uniform */
+    static final float GROUP_PRIOR_WEIGHT = 0.5f;
+
+    /** Denials in a row after which the offer is searched for above the last accept */
+    static final int DENIALS_BEFORE_RAISE = 5;
+
+    private static final int STATE_VERSION = 1;
+
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    private final File mStateFile;
+    private final File mResultsFile;
+    private final File mResultsColumnFile;
+    private final double mCutoff;
+
+    /** Guarded by this. Keyed by pairKey(), least recently used first */
+    private final LinkedHashMap<String, Posterior> mPosteriors =
+            new LinkedHashMap<String, Posterior>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Posterior> eldest) {
+            return size() > MAX_PAIRS;
+        }
+    };
+    /** Guarded by this. Keyed by group, there are only a few */
+    private final HashMap<String, Posterior> mGroups = new HashMap<>();
+    private boolean mSaveScheduled;
+
+    /** Probability mass of each bin of the threshold, summing to 1 */
+    private static final class Posterior {
+        /** Null for a group's posterior */
+        final String mAppName;
+        final String mGroupName;
+        final float[] mMass = new float[BINS];
+        /** Last accepted offer, negative if none was ever accepted */
+        double mLastAccepted = -1;
+        int mConsecutiveDenials;
+        /** Highest offer denied since the last accept */
+        double mHighestDenied;
+
+        /**
+         * @param prior Posterior to start from, mixed with a uniform one by {@code weight},
+         * and whose last accepted offer is the first bound
+         */
+        Posterior(String appName, String groupName, Posterior prior, float weight) {
+            mAppName = appName;
+            mGroupName = groupName;
+            for (int i = 0; i < BINS; i++) {
+                mMass[i] = prior != null ? mixed(prior.mMass[i], weight) : 1f / BINS;
+            }
+            if (prior != null) {
+                mLastAccepted = prior.mLastAccepted;
+            }
+        }
+    }
+
+    /**
+     * @param stateFile Where the posteriors are kept
+     * @param resultsFile Results log to rebuild the posteriors from on first boot
+     * @param resultsColumnFile Columnar results, preferred over the log as it has offers
+     * @param cutoff Offers always stay below this amount
+     */
+    OfferBoundarySearch(File stateFile, File resultsFile, File resultsColumnFile,
+            double cutoff) {
+        mStateFile = stateFile;
+        mResultsFile = resultsFile;
+        mResultsColumnFile = resultsColumnFile;
+        mCutoff = cutoff;
+    }
+
+    /**
+     * Reads the saved posteriors, or rebuilds them from the results if there are none.
+     */
+    void load() {
+        try {
+            readState();
+            return;
+        } catch (FileNotFoundException e) {
+            // First boot with offer boundaries, fall through
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read offer boundaries", e);
+        }
+        try {
+            final List<File> rotated = ResultsColumnFile.rotatedFiles(mResultsColumnFile);
+            if (!rotated.isEmpty() || mResultsColumnFile.exists()) {
+                for (File file : rotated) {
+                    rebuildFromColumns(file);
+                }
+                rebuildFromColumns(mResultsColumnFile);
+            } else {
+                rebuildFromResults();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not rebuild offer boundaries from results", e);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * @return The posterior median of the pair's threshold between its bounds, in
+     * dollars, below the cutoff
+     */
+    synchronized double generateOffer(String appName, String groupName) {
+        final Posterior posterior = mPosteriors.get(pairKey(appName, groupName));
+        if (posterior != null) {
+            return offer(posterior, posterior.mMass, 1);
+        }
+        // What the pair would start from, see onDecision()
+        final Posterior group = mGroups.get(groupName);
+        if (group == null) {
+            return mCutoff / 2;
+        }
+        return median(group.mMass, GROUP_PRIOR_WEIGHT, 0, upperBound(group.mLastAccepted));
+    }
+
+    /**
+     * @return The posterior median of the threshold across every app asking for the
+     * group, in dollars. It moves with each answer for the group, whatever the app.
+     */
+    synchronized double getGroupEstimate(String groupName) {
+        final Posterior group = mGroups.get(groupName);
+        return group != null ? median(group.mMass, 1, 0, mCutoff) : mCutoff / 2;
+    }
+
+    /** The median between the running bounds, see the class comment */
+    private double offer(Posterior bounds, float[] mass, float weight) {
+        if (bounds.mConsecutiveDenials >= DENIALS_BEFORE_RAISE) {
+            // Above both the last accept and what was turned down
+            final double floor = Math.min(Math.max(Math.max(bounds.mLastAccepted, 0),
+                    bounds.mHighestDenied), mCutoff);
+            return median(mass, weight, floor, mCutoff);
+        }
+        return median(mass, weight, 0, upperBound(bounds.mLastAccepted));
+    }
+
+    private double upperBound(double lastAccepted) {
+        return lastAccepted >= 0 ? Math.min(lastAccepted, mCutoff) : mCutoff;
+    }
+
+    /**
+     * @param weight Share of {@code mass} in the posterior, the rest is uniform
+     * @return The median of the posterior cut down to between {@code low} and
+     * {@code high}
+     */
+    private double median(float[] mass, float weight, double low, double high) {
+        final double binWidth = mCutoff / BINS;
+        double total = 0;
+        for (int i = 0; i < BINS; i++) {
+            total += mixed(mass[i], weight) * overlap(i, low, high);
+        }
+        if (total <= 0) {
+            return (low + high) / 2;
+        }
+        double below = 0;
+        for (int i = 0; i < BINS; i++) {
+            final double binMass = mixed(mass[i], weight) * overlap(i, low, high);
+            if (binMass > 0 && below + binMass >= total / 2) {
+                final double start = Math.max(i * binWidth, low);
+                final double end = Math.min((i + 1) * binWidth, high);
+                return start + (total / 2 - below) / binMass * (end - start);
+            }
+            below += binMass;
+        }
+        return high;
+    }
+
+    /** @return The share of bin {@code i} between {@code low} and {@code high} */
+    private double overlap(int i, double low, double high) {
+        final double binWidth = mCutoff / BINS;
+        return Math.max(0, Math.min((i + 1) * binWidth, high) - Math.max(i * binWidth, low))
+                / binWidth;
+    }
+
+    private static float mixed(float mass, float weight) {
+        return mass * weight + (1 - weight) / BINS;
+    }
+
+    /**
+     * Moves the pair's posterior, and its group's, towards the side of the offer the
+     * answer points to, and updates their running bounds. A new pair starts out from
+     * its group's posterior.
+     */
+    void onDecision(String appName, String groupName, double offer, boolean accepted) {
+        synchronized (this) {
+            onDecisionLocked(appName, groupName, offer, accepted);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * @param offer The amount offered, negative if not known, which only moves the bounds
+     */
+    private void onDecisionLocked(String appName, String groupName, double offer,
+            boolean accepted) {
+        Posterior group = mGroups.get(groupName);
+        final String key = pairKey(appName, groupName);
+        Posterior posterior = mPosteriors.get(key);
+        if (posterior == null) {
+            posterior = new Posterior(appName, groupName, group, GROUP_PRIOR_WEIGHT);
+            mPosteriors.put(key, posterior);
+        }
+        if (group == null) {
+            group = new Posterior(null, groupName, null, 0);
+            mGroups.put(groupName, group);
+        }
+        if (offer >= 0) {
+            update(posterior.mMass, offer, accepted);
+            update(group.mMass, offer, accepted);
+        }
+        updateBounds(posterior, offer, accepted);
+        updateBounds(group, offer, accepted);
+    }
+
+    private static void updateBounds(Posterior bounds, double offer, boolean accepted) {
+        if (accepted) {
+            if (offer >= 0) {
+                bounds.mLastAccepted = offer;
+            }
+            bounds.mConsecutiveDenials = 0;
+            bounds.mHighestDenied = 0;
+        } else {
+            bounds.mConsecutiveDenials++;
+            bounds.mHighestDenied = Math.max(bounds.mHighestDenied, offer);
+        }
+    }
+
+    private void update(float[] mass, double offer, boolean accepted) {
+        // Weights for the bins below the offer and above it
+        final float weightBelow = accepted ? 1 - ERROR_RATE : ERROR_RATE;
+        final float weightAbove = accepted ? ERROR_RATE : 1 - ERROR_RATE;
+        final double position = Math.max(0, Math.min(offer / mCutoff * BINS, BINS));
+        float total = 0;
+        for (int i = 0; i < BINS; i++) {
+            // Part of this bin below the offer
+            final float fraction = (float) Math.max(0, Math.min(position - i, 1));
+            mass[i] = Math.max(mass[i] * (fraction * weightBelow
+                    + (1 - fraction) * weightAbove), MIN_MASS);
+            total += mass[i];
+        }
+        for (int i = 0; i < BINS; i++) {
+            mass[i] /= total;
+        }
+    }
+
+    private static String pairKey(String appName, String groupName) {
+        return appName + '\u0000' + groupName;
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (mSaveScheduled) {
+                return;
+            }
+            mSaveScheduled = true;
+        }
+        sSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeState();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not write offer boundaries", e);
+                }
+            }
+        });
+    }
+
+    private void writeState() throws IOException {
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            synchronized (this) {
+                mSaveScheduled = false;
+                out.writeInt(STATE_VERSION);
+                out.writeInt(BINS);
+                out.writeInt(mPosteriors.size());
+                // Least recently used first, so reading them back keeps the order
+                for (Posterior posterior : mPosteriors.values()) {
+                    out.writeUTF(posterior.mAppName);
+                    out.writeUTF(posterior.mGroupName);
+                    writeMass(out, posterior);
+                }
+                out.writeInt(mGroups.size());
+                for (Posterior group : mGroups.values()) {
+                    out.writeUTF(group.mGroupName);
+                    writeMass(out, group);
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(mStateFile)) {
+            throw new IOException("Could not replace " + mStateFile.getName());
+        }
+    }
+
+    private static void writeMass(DataOutputStream out, Posterior posterior)
+            throws IOException {
+        for (int i = 0; i < BINS; i++) {
+            out.writeFloat(posterior.mMass[i]);
+        }
+        out.writeDouble(posterior.mLastAccepted);
+        out.writeInt(posterior.mConsecutiveDenials);
+        out.writeDouble(posterior.mHighestDenied);
+    }
+
+    private void readState() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mStateFile)));
+        try {
+            if (in.readInt() != STATE_VERSION || in.readInt() != BINS) {
+                throw new IOException("Unknown offer boundaries version");
+            }
+            final int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    Posterior posterior = new Posterior(in.readUTF(), in.readUTF(), null, 0);
+                    readMass(in, posterior);
+                    mPosteriors.put(pairKey(posterior.mAppName, posterior.mGroupName),
+                            posterior);
+                }
+                final int groupCount = in.readInt();
+                for (int i = 0; i < groupCount; i++) {
+                    Posterior group = new Posterior(null, in.readUTF(), null, 0);
+                    readMass(in, group);
+                    mGroups.put(group.mGroupName, group);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readMass(DataInputStream in, Posterior posterior) throws IOException {
+        for (int i = 0; i < BINS; i++) {
+            posterior.mMass[i] = in.readFloat();
+        }
+        posterior.mLastAccepted = in.readDouble();
+        posterior.mConsecutiveDenials = in.readInt();
+        posterior.mHighestDenied = in.readDouble();
+    }
+
+    /**
+     * Replays a columnar results file, which holds the amounts that were offered.
+     */
+    private void rebuildFromColumns(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        final ResultsColumnFile.Reader reader = ResultsColumnFile.Reader.open(file);
+        synchronized (this) {
+            reader.scan(new ResultsColumnFile.Visitor() {
+                @Override
+                public void visit(long time, int appId, int permissionId, float offer,
+                        boolean granted) {
+                    onDecisionLocked(reader.getAppName(appId),
+                            reader.getPermissionName(permissionId), offer, granted);
+                }
+            });
+        }
+    }
+
+    /**
+     * Replays the results log, sealed segments included. It holds no offer amounts, so
+     * only the runs of denials can be recovered, the posteriors stay where they start.
+     */
+    private void rebuildFromResults() throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    ResultsManifest.openAll(mResultsFile), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // app,group,response,date - the app label may itself contain commas
+                    final int dateStart = line.lastIndexOf(',');
+                    final int responseStart = dateStart > 0
+                            ? line.lastIndexOf(',', dateStart - 1) : -1;
+                    final int groupStart = responseStart > 0
+                            ? line.lastIndexOf(',', responseStart - 1) : -1;
+                    if (groupStart < 0) {
+                        continue;
+                    }
+                    onDecisionLocked(line.substring(0, groupStart),
+                            line.substring(groupStart + 1, responseStart),
+                            ResultsColumnFile.NO_OFFER,
+                            line.startsWith("true", responseStart + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
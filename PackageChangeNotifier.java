@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tells the process-wide caches of the permission UI when an installed package changes.
+ * One receiver for the package broadcasts is registered on the application context and
+ * fans out to every listener. Grant state changes are reported the same way, from one
+ * OnPermissionsChangedListener registered once the first such listener is added.
+ */
+class PackageChangeNotifier extends BroadcastReceiver
+        implements PackageManager.OnPermissionsChangedListener {
+    private static PackageChangeNotifier sInstance;
+
+    private final PackageManager mPackageManager;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<PermissionsListener> mPermissionsListeners =
+            new CopyOnWriteArrayList<>();
+    /** Guarded by this */
+    private boolean mObservingPermissions;
+
+    /** Called on the main thread */
+    interface Listener {
+        /**
+         * @param packageName The package that was added, removed, replaced or changed
+         */
+        void onPackageChanged(String packageName);
+    }
+
+    /** Called on the main thread */
+    interface PermissionsListener {
+        /**
+         * @param packageName A package whose permissions were granted, revoked or had
+         *         their flags changed
+         */
+        void onPermissionsChanged(String packageName);
+    }
+
+    private PackageChangeNotifier(PackageManager packageManager) {
+        mPackageManager = packageManager;
+    }
+
+    static PackageChangeNotifier get(Context context) {
+        synchronized (PackageChangeNotifier.class) {
+            if (sInstance == null) {
+                sInstance = new PackageChangeNotifier(
+                        context.getApplicationContext().getPackageManager());
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+                filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+                filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+                filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+                filter.addDataScheme("package");
+                context.getApplicationContext().registerReceiver(sInstance, filter);
+            }
+            return sInstance;
+        }
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    void addPermissionsListener(PermissionsListener listener) {
+        mPermissionsListeners.add(listener);
+        synchronized (this) {
+            if (!mObservingPermissions) {
+                mObservingPermissions = true;
+                mPackageManager.addOnPermissionsChangeListener(this);
+            }
+        }
+    }
+
+    void removePermissionsListener(PermissionsListener listener) {
+        mPermissionsListeners.remove(listener);
+    }
+
+    @Override
+    public void onPermissionsChanged(int uid) {
+        final String[] packageNames = mPackageManager.getPackagesForUid(uid);
+        if (packageNames == null) {
+            return;
+        }
+        for (String packageName : packageNames) {
+            for (PermissionsListener listener : mPermissionsListeners) {
+                listener.onPermissionsChanged(packageName);
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Uri data = intent.getData();
+        if (data == null) {
+            return;
+        }
+        final String packageName = data.getSchemeSpecificPart();
+        for (Listener listener : mListeners) {
+            listener.onPackageChanged(packageName);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionInfo;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide index from runtime permission group to the packages that request it, and
+ * from package to its groups, so the permission apps and app permissions screens do not
+ * enumerate every installed package each time they open.
+ *
+ * Every installed package is scanned once, in the background, the first time the index
+ * is asked for, so nothing is scanned until a screen calls get(). From then on only the
+ * package a broadcast or a grant change is about is read again. Lookups return lists
+ * built when the index last changed, so they take the same time however many apps are
+ * installed. Each entry also reads the pair's LottoTrader history: the recent denial,
+ * the current offer, and the last grant and denial.
+ *
+ * ManagePermissionsActivity reads the index when it opens the permission apps or app
+ * permissions screen and hands the answer to the fragment in its arguments, see
+ * putApps() and putGroups(). Until the first scan is done it passes nothing and the
+ * fragment enumerates the packages itself, as before.
+ */
+public final class PermissionAppsIndex implements PackageChangeNotifier.Listener,
+        PackageChangeNotifier.PermissionsListener {
+    /**
+     * Fragment argument: the packages requesting the screen's permission group, as a
+     * String array. Absent if the index was not ready.
+     */
+    public static final String EXTRA_PACKAGE_NAMES =
+            "com.android.packageinstaller.permission.ui.extra.PACKAGE_NAMES";
+
+    /**
+     * Fragment argument: the runtime permission groups the screen's package requests, as a
+     * String array. Absent if the index was not ready.
+     */
+    public static final String EXTRA_GROUP_NAMES =
+            "com.android.packageinstaller.permission.ui.extra.GROUP_NAMES";
+
+    /**
+     * Fragment argument: whether each package or group of the array above is granted, as
+     * a boolean array in the same order.
+     */
+    public static final String EXTRA_GRANTED =
+            "com.android.packageinstaller.permission.ui.extra.GRANTED";
+
+    private static PermissionAppsIndex sInstance;
+
+    private final PackageManager mPackageManager;
+    private final PermissionInfoCache mPermissionInfos;
+    private final LottoTrader mLottoTrader;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /** Guarded by this. Entries by group, then by package */
+    private final HashMap<String, HashMap<String, Entry>> mByGroup = new HashMap<>();
+    /** Guarded by this. What getApps() returns, rebuilt when a group changes */
+    private final HashMap<String, List<Entry>> mGroupLists = new HashMap<>();
+    /** Guarded by this. What getGroups() returns */
+    private final HashMap<String, List<Entry>> mByPackage = new HashMap<>();
+    /** Guarded by this. Set once every installed package has been scanned */
+    private boolean mReady;
+
+    /** One runtime permission group requested by one package */
+    public static final class Entry {
+        private final String mPackageName;
+        private final String mGroupName;
+        private final String mAppLabel;
+        private final boolean mGranted;
+        private final LottoTrader mLottoTrader;
+
+        Entry(String packageName, String groupName, String appLabel, boolean granted,
+                LottoTrader lottoTrader) {
+            mPackageName = packageName;
+            mGroupName = groupName;
+            mAppLabel = appLabel;
+            mGranted = granted;
+            mLottoTrader = lottoTrader;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public String getGroupName() {
+            return mGroupName;
+        }
+
+        public String getAppLabel() {
+            return mAppLabel;
+        }
+
+        /** Whether any permission of the group is granted */
+        public boolean isGranted() {
+            return mGranted;
+        }
+
+        /**
+         * @return Milliseconds since the user denied the group to the app, -1 unless that
+         * was within LottoTrader's wait period
+         */
+        public long getTimeSinceDenied() {
+            return mLottoTrader.checkIfDeniedRecently(mAppLabel, mGroupName);
+        }
+
+        /** @return What the app would be offered for the group now, in dollars */
+        public double getOffer() {
+            return mLottoTrader.getBoundaries().generateOffer(mAppLabel, mGroupName);
+        }
+
+        /** @return When the user last granted the group through a prompt, or -1 */
+        public long getTimeOfGrant() {
+            final TriggerRuleEngine.History history = getHistory();
+            return history != null ? history.mTimeOfGrant : -1;
+        }
+
+        /** @return The offer accepted with the last grant, negative if there was none */
+        public float getAcceptedOffer() {
+            final TriggerRuleEngine.History history = getHistory();
+            return history != null ? history.mOffer : -1;
+        }
+
+        /** @return When the user last denied the group, or -1 */
+        public long getTimeOfDenial() {
+            final TriggerRuleEngine.History history = getHistory();
+            return history != null ? history.mTimeOfDenial : -1;
+        }
+
+        private TriggerRuleEngine.History getHistory() {
+            return mLottoTrader.getTriggers().getHistory(mPackageName, mGroupName);
+        }
+    }
+
+    private PermissionAppsIndex(Context context) {
+        mPackageManager = context.getPackageManager();
+        mPermissionInfos = PermissionInfoCache.get(context);
+        mLottoTrader = LottoTrader.get(context);
+    }
+
+    /**
+     * Returns the index, starting the scan of every installed package on the first call.
+     */
+    public static PermissionAppsIndex get(Context context) {
+        synchronized (PermissionAppsIndex.class) {
+            if (sInstance == null) {
+                sInstance = new PermissionAppsIndex(context.getApplicationContext());
+                PackageChangeNotifier notifier = PackageChangeNotifier.get(context);
+                notifier.addListener(sInstance);
+                notifier.addPermissionsListener(sInstance);
+                sInstance.scanInBackground();
+            }
+            return sInstance;
+        }
+    }
+
+    public synchronized boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * @return The packages requesting the group, null until the first scan is done
+     */
+    public synchronized List<Entry> getApps(String groupName) {
+        if (!mReady) {
+            return null;
+        }
+        final List<Entry> apps = mGroupLists.get(groupName);
+        return apps != null ? apps : Collections.<Entry>emptyList();
+    }
+
+    /**
+     * @return The runtime permission groups the package requests, null until the first
+     * scan is done
+     */
+    public synchronized List<Entry> getGroups(String packageName) {
+        if (!mReady) {
+            return null;
+        }
+        final List<Entry> groups = mByPackage.get(packageName);
+        return groups != null ? groups : Collections.<Entry>emptyList();
+    }
+
+    /**
+     * Puts the packages requesting the group into a fragment's arguments, see
+     * {@link #EXTRA_PACKAGE_NAMES}.
+     *
+     * @return False if the first scan is not done yet and nothing was put
+     */
+    public boolean putApps(Bundle arguments, String groupName) {
+        final List<Entry> apps = getApps(groupName);
+        if (apps == null) {
+            return false;
+        }
+        final String[] packageNames = new String[apps.size()];
+        for (int i = 0; i < packageNames.length; i++) {
+            packageNames[i] = apps.get(i).mPackageName;
+        }
+        arguments.putStringArray(EXTRA_PACKAGE_NAMES, packageNames);
+        arguments.putBooleanArray(EXTRA_GRANTED, grantedOf(apps));
+        return true;
+    }
+
+    /**
+     * Puts the groups the package requests into a fragment's arguments, see
+     * {@link #EXTRA_GROUP_NAMES}.
+     *
+     * @return False if the first scan is not done yet and nothing was put
+     */
+    public boolean putGroups(Bundle arguments, String packageName) {
+        final List<Entry> groups = getGroups(packageName);
+        if (groups == null) {
+            return false;
+        }
+        final String[] groupNames = new String[groups.size()];
+        for (int i = 0; i < groupNames.length; i++) {
+            groupNames[i] = groups.get(i).mGroupName;
+        }
+        arguments.putStringArray(EXTRA_GROUP_NAMES, groupNames);
+        arguments.putBooleanArray(EXTRA_GRANTED, grantedOf(groups));
+        return true;
+    }
+
+    private static boolean[] grantedOf(List<Entry> entries) {
+        final boolean[] granted = new boolean[entries.size()];
+        for (int i = 0; i < granted.length; i++) {
+            granted[i] = entries.get(i).mGranted;
+        }
+        return granted;
+    }
+
+    @Override
+    public void onPackageChanged(String packageName) {
+        refreshInBackground(packageName);
+    }
+
+    @Override
+    public void onPermissionsChanged(String packageName) {
+        refreshInBackground(packageName);
+    }
+
+    private void scanInBackground() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<PackageInfo> packages =
+                        mPackageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS);
+                final HashSet<String> changedGroups = new HashSet<>();
+                for (PackageInfo packageInfo : packages) {
+                    final List<Entry> entries = entriesOf(packageInfo);
+                    synchronized (PermissionAppsIndex.this) {
+                        replacePackageLocked(packageInfo.packageName, entries, changedGroups);
+                    }
+                }
+                synchronized (PermissionAppsIndex.this) {
+                    // Built once at the end, not again for every package of the group
+                    rebuildGroupListsLocked(changedGroups);
+                    mReady = true;
+                }
+            }
+        });
+    }
+
+    /** Reads the package again. Queued behind the first scan, so it never gets ahead */
+    private void refreshInBackground(final String packageName) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> entries;
+                try {
+                    entries = entriesOf(mPackageManager.getPackageInfo(packageName,
+                            PackageManager.GET_PERMISSIONS));
+                } catch (NameNotFoundException e) {
+                    // Uninstalled
+                    entries = null;
+                }
+                final HashSet<String> changedGroups = new HashSet<>();
+                synchronized (PermissionAppsIndex.this) {
+                    replacePackageLocked(packageName, entries, changedGroups);
+                    rebuildGroupListsLocked(changedGroups);
+                }
+            }
+        });
+    }
+
+    /** One entry for each runtime permission group the package requests */
+    private List<Entry> entriesOf(PackageInfo packageInfo) {
+        final String[] permissions = packageInfo.requestedPermissions;
+        if (permissions == null || permissions.length == 0) {
+            return null;
+        }
+        // Granted if any of the group's permissions is
+        final HashMap<String, Boolean> groups = new HashMap<>();
+        for (int i = 0; i < permissions.length; i++) {
+            final int protectionLevel = mPermissionInfos.getProtectionLevel(permissions[i]);
+            if (protectionLevel == PermissionInfoCache.UNKNOWN_PERMISSION
+                    || (protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
+                            != PermissionInfo.PROTECTION_DANGEROUS) {
+                continue;
+            }
+            final String group = mPermissionInfos.getGroup(permissions[i]);
+            if (group == null) {
+                continue;
+            }
+            final boolean granted = packageInfo.requestedPermissionsFlags != null
+                    && (packageInfo.requestedPermissionsFlags[i]
+                            & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0;
+            final Boolean known = groups.get(group);
+            groups.put(group, granted || (known != null && known));
+        }
+        if (groups.isEmpty()) {
+            return null;
+        }
+        final String appLabel = packageInfo.applicationInfo != null
+                ? mPackageManager.getApplicationLabel(packageInfo.applicationInfo).toString()
+                : packageInfo.packageName;
+        final ArrayList<Entry> entries = new ArrayList<>(groups.size());
+        for (String group : groups.keySet()) {
+            entries.add(new Entry(packageInfo.packageName, group, appLabel, groups.get(group),
+                    mLottoTrader));
+        }
+        return entries;
+    }
+
+    /**
+     * Swaps the package's entries for the new ones, none if null.
+     *
+     * @param changedGroups Gets every group whose list needs rebuilding
+     */
+    private void replacePackageLocked(String packageName, List<Entry> entries,
+            HashSet<String> changedGroups) {
+        final List<Entry> old = mByPackage.remove(packageName);
+        if (old != null) {
+            for (Entry entry : old) {
+                final HashMap<String, Entry> apps = mByGroup.get(entry.mGroupName);
+                apps.remove(packageName);
+                if (apps.isEmpty()) {
+                    mByGroup.remove(entry.mGroupName);
+                }
+                changedGroups.add(entry.mGroupName);
+            }
+        }
+        if (entries == null) {
+            return;
+        }
+        mByPackage.put(packageName, Collections.unmodifiableList(entries));
+        for (Entry entry : entries) {
+            HashMap<String, Entry> apps = mByGroup.get(entry.mGroupName);
+            if (apps == null) {
+                apps = new HashMap<>();
+                mByGroup.put(entry.mGroupName, apps);
+            }
+            apps.put(packageName, entry);
+            changedGroups.add(entry.mGroupName);
+        }
+    }
+
+    private void rebuildGroupListsLocked(HashSet<String> groups) {
+        for (String group : groups) {
+            final HashMap<String, Entry> apps = mByGroup.get(group);
+            if (apps == null) {
+                mGroupLists.remove(group);
+            } else {
+                mGroupLists.put(group,
+                        Collections.unmodifiableList(new ArrayList<>(apps.values())));
+            }
+        }
+    }
+}
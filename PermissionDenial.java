@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import java.io.Serializable;
+
+/**
+ * Represents a user denying a permission request
+ */
+class PermissionDenial implements Serializable 
+{
+    /**
+     * The UID the class had before it was given more constructors and methods, so the
+     * recent denials serialized back then can still be read to migrate them
+     */
+    private static final long serialVersionUID = 2002525774519499065L;
+
+    public String mPermissionName;
+    public long mTimeOfDenial;
+
+    PermissionDenial(String _permissionName)
+    {
+        this(_permissionName, LottoTrader.currentTimeMillis());
+    }
+
+    PermissionDenial(String _permissionName, long _timeOfDenial)
+    {
+        mPermissionName = _permissionName;
+        mTimeOfDenial = _timeOfDenial;
+    }
+
+    public boolean waitPeriodOver()
+    {
+        return waitPeriodOver(mTimeOfDenial);
+    }
+
+    static boolean waitPeriodOver(long timeOfDenial)
+    {
+        final long timeSinceDenial = LottoTrader.currentTimeMillis() - timeOfDenial;
+        return (timeSinceDenial >= LottoTrader.DENIED_WAIT_PERIOD) ? true : false;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionInfo;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide cache of permission protection levels and groups, so that a prompt does
+ * not make a getPermissionInfo() binder call for every permission it was asked for.
+ *
+ * Permissions are defined by packages, so the whole cache is dropped whenever a package
+ * is added, removed or updated. Granting and revoking do not change protection levels.
+ */
+class PermissionInfoCache implements PackageChangeNotifier.Listener {
+    /** Protection level cached for a permission that is not defined on the device */
+    static final int UNKNOWN_PERMISSION = -1;
+
+    /** Cached for a permission that is not defined on the device */
+    private static final PermissionInfo NOT_DEFINED = new PermissionInfo();
+
+    private static PermissionInfoCache sInstance;
+
+    private final PackageManager mPackageManager;
+
+    /** Guarded by this */
+    private final HashMap<String, PermissionInfo> mPermissionInfos = new HashMap<>();
+    /** Bumped on every invalidation, so a lookup racing with one is not cached */
+    private int mGeneration;
+
+    private PermissionInfoCache(PackageManager packageManager) {
+        mPackageManager = packageManager;
+    }
+
+    static PermissionInfoCache get(Context context) {
+        synchronized (PermissionInfoCache.class) {
+            if (sInstance == null) {
+                sInstance = new PermissionInfoCache(
+                        context.getApplicationContext().getPackageManager());
+                PackageChangeNotifier.get(context).addListener(sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * @return The protectionLevel of the permission, or UNKNOWN_PERMISSION
+     */
+    int getProtectionLevel(String permission) {
+        final PermissionInfo info = getPermissionInfo(permission);
+        return info != NOT_DEFINED ? info.protectionLevel : UNKNOWN_PERMISSION;
+    }
+
+    /**
+     * @return The group the permission belongs to, or null if it has none or is unknown
+     */
+    String getGroup(String permission) {
+        return getPermissionInfo(permission).group;
+    }
+
+    private PermissionInfo getPermissionInfo(String permission) {
+        final int generation;
+        synchronized (this) {
+            final PermissionInfo cached = mPermissionInfos.get(permission);
+            if (cached != null) {
+                return cached;
+            }
+            generation = mGeneration;
+        }
+        PermissionInfo info;
+        try {
+            info = mPackageManager.getPermissionInfo(permission, 0);
+        } catch (NameNotFoundException e) {
+            info = NOT_DEFINED;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mPermissionInfos.put(permission, info);
+            }
+        }
+        return info;
+    }
+
+    @Override
+    public synchronized void onPackageChanged(String packageName) {
+        mPermissionInfos.clear();
+        mGeneration++;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PermissionInfo;
+
+import com.android.packageinstaller.permission.model.AppPermissionGroup;
+import com.android.packageinstaller.permission.model.AppPermissions;
+import com.android.packageinstaller.permission.model.Permission;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Decides, before a prompt inflates anything, whether a permission request has anything
+ * to ask, so an app calling requestPermissions() in a loop does not cost a frame per call.
+ *
+ * A request has nothing to ask when each requested group is fixed by the user or by
+ * policy, already fully granted, or denied within LottoTrader's wait period, where the
+ * prompt could only offer Cancel. That is read from the app's cached permission model,
+ * see AppPermissionsLoader, and the recent denials, both in memory. Anything else, or a
+ * model that is not cached yet, goes the normal way.
+ *
+ * The results of such a request are kept for the package and returned as they are for the
+ * same request, until its permissions or the package change, the policy changes, or the
+ * first of its wait periods is over. A storm of requests then costs one lookup each.
+ */
+class PromptGate implements PackageChangeNotifier.Listener,
+        PackageChangeNotifier.PermissionsListener {
+    private static final int MAX_PACKAGES = 16;
+
+    /** Longest time (ms) results are reused, in case a change is never reported */
+    private static final long MAX_REUSE_PERIOD = 60 * 1000;
+
+    private static PromptGate sInstance;
+
+    private final AppPermissionsLoader mLoader;
+    private final PermissionInfoCache mPermissionInfos;
+
+    /** Guarded by this. Least recently used first */
+    private final LinkedHashMap<String, Outcome> mOutcomes =
+            new LinkedHashMap<String, Outcome>(MAX_PACKAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+            return size() > MAX_PACKAGES;
+        }
+    };
+
+    /**
+     * Guarded by this. Where each permission is in the requestedPermissions of a model's
+     * package info, built once per model. Dropped along with the model.
+     */
+    private final WeakHashMap<AppPermissions, HashMap<String, Integer>> mRequestedIndices =
+            new WeakHashMap<>();
+
+    /** The results of a request with nothing to ask */
+    private static final class Outcome {
+        final String[] mPermissions;
+        final int mPermissionPolicy;
+        final int[] mGrantResults;
+        /** In LottoTrader's time, see LottoTrader.currentTimeMillis() */
+        final long mValidUntil;
+
+        Outcome(String[] permissions, int permissionPolicy, int[] grantResults,
+                long validUntil) {
+            mPermissions = permissions;
+            mPermissionPolicy = permissionPolicy;
+            mGrantResults = grantResults;
+            mValidUntil = validUntil;
+        }
+    }
+
+    private PromptGate(Context context) {
+        mLoader = AppPermissionsLoader.get(context);
+        mPermissionInfos = PermissionInfoCache.get(context);
+    }
+
+    static PromptGate get(Context context) {
+        synchronized (PromptGate.class) {
+            if (sInstance == null) {
+                sInstance = new PromptGate(context.getApplicationContext());
+                PackageChangeNotifier notifier = PackageChangeNotifier.get(context);
+                notifier.addListener(sInstance);
+                notifier.addPermissionsListener(sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * @return The grant result of each requested permission if the request has nothing to
+     * ask, null if it needs the prompt
+     */
+    int[] check(String packageName, String[] permissions, int permissionPolicy,
+            LottoTrader lottoTrader) {
+        if (packageName == null || !lottoTrader.isLoaded()) {
+            return null;
+        }
+        final long now = LottoTrader.currentTimeMillis();
+        synchronized (this) {
+            final Outcome outcome = mOutcomes.get(packageName);
+            if (outcome != null && now < outcome.mValidUntil
+                    && outcome.mPermissionPolicy == permissionPolicy
+                    && Arrays.equals(outcome.mPermissions, permissions)) {
+                return outcome.mGrantResults.clone();
+            }
+        }
+        final AppPermissions appPermissions = mLoader.peek(packageName);
+        if (appPermissions == null) {
+            return null;
+        }
+
+        final int[] grantResults = new int[permissions.length];
+        final boolean[] resolved = new boolean[permissions.length];
+        final HashMap<String, Integer> slots = new HashMap<>(permissions.length * 2);
+        for (int i = permissions.length - 1; i >= 0; i--) {
+            // The first slot wins, as in the prompt
+            slots.put(permissions[i], i);
+        }
+        final String appLabel = appPermissions.getAppLabel().toString();
+        long validUntil = now + MAX_REUSE_PERIOD;
+
+        for (AppPermissionGroup group : appPermissions.getPermissionGroups()) {
+            boolean requested = false;
+            boolean allGranted = true;
+            boolean anyGranted = false;
+            for (Permission permission : group.getPermissions()) {
+                requested |= slots.containsKey(permission.getName());
+                allGranted &= permission.isGranted();
+                anyGranted |= permission.isGranted();
+            }
+            if (!requested) {
+                continue;
+            }
+            if (!group.isUserFixed() && !group.isPolicyFixed()) {
+                if (permissionPolicy == DevicePolicyManager.PERMISSION_POLICY_AUTO_GRANT
+                        || permissionPolicy == DevicePolicyManager.PERMISSION_POLICY_AUTO_DENY) {
+                    // The policy is applied, and fixed, by the prompt
+                    return null;
+                }
+                if (!allGranted) {
+                    if (anyGranted) {
+                        // The prompt grants the rest of the group
+                        return null;
+                    }
+                    final long timeSinceDenied =
+                            lottoTrader.checkIfDeniedRecently(appLabel, group.getName());
+                    if (timeSinceDenied == -1) {
+                        return null;
+                    }
+                    // Only Cancel could be pressed, which records nothing
+                    validUntil = Math.min(validUntil,
+                            now + LottoTrader.DENIED_WAIT_PERIOD - timeSinceDenied);
+                }
+            }
+            for (Permission permission : group.getPermissions()) {
+                final Integer slot = slots.get(permission.getName());
+                if (slot != null) {
+                    grantResults[slot] = permission.isGranted() ? PERMISSION_GRANTED
+                            : PERMISSION_DENIED;
+                    resolved[slot] = true;
+                }
+            }
+        }
+
+        if (!resolveOthers(appPermissions, permissions, grantResults, resolved, slots)) {
+            return null;
+        }
+        synchronized (this) {
+            mOutcomes.put(packageName, new Outcome(permissions.clone(), permissionPolicy,
+                    grantResults.clone(), validUntil));
+        }
+        return grantResults;
+    }
+
+    /**
+     * Fills in the permissions of no group from the package's requested flags.
+     *
+     * @return False if one of them is a runtime permission, left to the prompt
+     */
+    private boolean resolveOthers(AppPermissions appPermissions, String[] permissions,
+            int[] grantResults, boolean[] resolved, HashMap<String, Integer> slots) {
+        final PackageInfo packageInfo = appPermissions.getPackageInfo();
+        final HashMap<String, Integer> requested = getRequestedIndices(appPermissions);
+        for (int i = 0; i < permissions.length; i++) {
+            if (resolved[i] || slots.get(permissions[i]) != i) {
+                continue;
+            }
+            final Integer index = requested.get(permissions[i]);
+            if (index == null) {
+                grantResults[i] = PERMISSION_DENIED;
+            } else if ((packageInfo.requestedPermissionsFlags[index]
+                    & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
+                grantResults[i] = PERMISSION_GRANTED;
+            } else if (isRuntime(permissions[i])) {
+                return false;
+            } else {
+                grantResults[i] = PERMISSION_DENIED;
+            }
+        }
+        // A permission requested twice gets the result of its first slot
+        for (int i = 0; i < permissions.length; i++) {
+            grantResults[i] = grantResults[slots.get(permissions[i])];
+        }
+        return true;
+    }
+
+    private synchronized HashMap<String, Integer> getRequestedIndices(
+            AppPermissions appPermissions) {
+        HashMap<String, Integer> indices = mRequestedIndices.get(appPermissions);
+        if (indices == null) {
+            final String[] requested = appPermissions.getPackageInfo().requestedPermissions;
+            indices = new HashMap<>();
+            for (int i = requested != null ? requested.length - 1 : -1; i >= 0; i--) {
+                // The first one wins if a permission is listed twice
+                indices.put(requested[i], i);
+            }
+            mRequestedIndices.put(appPermissions, indices);
+        }
+        return indices;
+    }
+
+    private boolean isRuntime(String permission) {
+        final int protectionLevel = mPermissionInfos.getProtectionLevel(permission);
+        return protectionLevel != PermissionInfoCache.UNKNOWN_PERMISSION
+                && (protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
+                        == PermissionInfo.PROTECTION_DANGEROUS;
+    }
+
+    @Override
+    public synchronized void onPackageChanged(String packageName) {
+        mOutcomes.remove(packageName);
+    }
+
+    @Override
+    public synchronized void onPermissionsChanged(String packageName) {
+        mOutcomes.remove(packageName);
+    }
+}
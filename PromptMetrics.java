@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide latency histograms and counters for the permission prompt and LottoTrader's
+ * disk work, printed and toggled through PromptMetricsProvider.
+ *
+ * Off by default, in which case start() is a volatile read and nothing else is touched.
+ * When on, recording is a few lock-free atomic updates: each timer has fixed buckets whose
+ * upper bounds double from 1us, so percentiles are read off to within a factor of two.
+ */
+final class PromptMetrics {
+    /** onCreate until the first group is shown */
+    static final int PROMPT_STARTUP = 0;
+    /** Loading the app's permissions and picking the groups to ask for */
+    static final int GROUP_RESOLUTION = 1;
+    /** One onPermissionGrantResult */
+    static final int GRANT_RESULT = 2;
+    static final int OFFER_GENERATION = 3;
+    static final int DENIAL_PERSIST = 4;
+    static final int DENIAL_RESTORE = 5;
+    /** Handing a result to the results writer */
+    static final int RESULT_APPEND = 6;
+    /** The results writer writing a batch to disk */
+    static final int RESULT_COMMIT = 7;
+    /** Deciding whether a request has anything to ask, see PromptGate */
+    static final int PROMPT_GATE = 8;
+    private static final String[] TIMER_NAMES = {
+            "prompt_startup", "group_resolution", "grant_result", "offer_generation",
+            "denial_persist", "denial_restore", "result_append", "result_commit",
+            "prompt_gate"
+    };
+    private static final int TIMER_COUNT = TIMER_NAMES.length;
+
+    static final int PROMPTS_SHOWN = 0;
+    static final int DECISIONS = 1;
+    static final int RESULT_BYTES_WRITTEN = 2;
+    static final int DISK_ERRORS = 3;
+    /** Requests answered without a window, see PromptGate */
+    static final int PROMPTS_SKIPPED = 4;
+    private static final String[] COUNTER_NAMES = {
+            "prompts_shown", "decisions", "result_bytes_written", "disk_errors",
+            "prompts_skipped"
+    };
+
+    /** Bucket i counts durations below 2^i us, the last one everything longer */
+    private static final int BUCKET_COUNT = 24;
+
+    private static volatile boolean sEnabled;
+
+    private static final AtomicLongArray sBuckets =
+            new AtomicLongArray(TIMER_COUNT * BUCKET_COUNT);
+    private static final AtomicLongArray sTotalNanos = new AtomicLongArray(TIMER_COUNT);
+    private static final AtomicLongArray sMaxNanos = new AtomicLongArray(TIMER_COUNT);
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    private PromptMetrics() {
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return A start time to pass to stop(), 0 if metrics are off
+     */
+    static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since start() in the timer's histogram.
+     */
+    static void stop(int timer, long start) {
+        if (start == 0) {
+            return;
+        }
+        final long nanos = System.nanoTime() - start;
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos / 1000),
+                BUCKET_COUNT - 1);
+        sBuckets.incrementAndGet(timer * BUCKET_COUNT + bucket);
+        sTotalNanos.addAndGet(timer, nanos);
+        long max;
+        while (nanos > (max = sMaxNanos.get(timer))) {
+            if (sMaxNanos.compareAndSet(timer, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    static void count(int counter, long delta) {
+        if (sEnabled) {
+            sCounters.addAndGet(counter, delta);
+        }
+    }
+
+    static void reset() {
+        for (int i = 0; i < sBuckets.length(); i++) {
+            sBuckets.set(i, 0);
+        }
+        for (int i = 0; i < TIMER_COUNT; i++) {
+            sTotalNanos.set(i, 0);
+            sMaxNanos.set(i, 0);
+        }
+        for (int i = 0; i < sCounters.length(); i++) {
+            sCounters.set(i, 0);
+        }
+    }
+
+    /**
+     * Prints every timer as count, mean, p50, p90, p99 and max in microseconds, then the
+     * counters. Percentiles are the upper bound of the bucket they fall in.
+     */
+    static void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "PromptMetrics: " + (sEnabled ? "enabled" : "disabled"));
+        final long[] buckets = new long[BUCKET_COUNT];
+        for (int timer = 0; timer < TIMER_COUNT; timer++) {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = sBuckets.get(timer * BUCKET_COUNT + i);
+                count += buckets[i];
+            }
+            if (count == 0) {
+                continue;
+            }
+            writer.println(prefix + "  " + TIMER_NAMES[timer] + ": count=" + count
+                    + " mean=" + sTotalNanos.get(timer) / count / 1000 + "us"
+                    + " p50" + percentile(buckets, count, 50)
+                    + " p90" + percentile(buckets, count, 90)
+                    + " p99" + percentile(buckets, count, 99)
+                    + " max=" + sMaxNanos.get(timer) / 1000 + "us");
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            writer.println(prefix + "  " + COUNTER_NAMES[i] + "=" + sCounters.get(i));
+        }
+    }
+
+    private static String percentile(long[] buckets, long count, int percent) {
+        final long rank = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return "<" + (1L << i) + "us";
+            }
+        }
+        return ">=" + (1L << (BUCKET_COUNT - 2)) + "us";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Exposes PromptMetrics for as long as the process runs, not only while a prompt is up.
+ * It serves no data. The system creates it when the process starts, and its dump is the
+ * way in:
+ *
+ *   adb shell dumpsys activity provider \
+ *       com.android.packageinstaller/.permission.ui.PromptMetricsProvider [on|off|reset]
+ *
+ * turns metrics on or off or clears them first, then prints them. Declared in the
+ * manifest as an unexported provider with authority
+ * "com.android.packageinstaller.promptmetrics".
+ */
+public final class PromptMetricsProvider extends ContentProvider {
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length == 1) {
+            if ("on".equals(args[0])) {
+                PromptMetrics.setEnabled(true);
+            } else if ("off".equals(args[0])) {
+                PromptMetrics.setEnabled(false);
+            } else if ("reset".equals(args[0])) {
+                PromptMetrics.reset();
+            }
+        }
+        PromptMetrics.dump("", writer);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Encodes results.csv lines straight into a reusable direct buffer:
+ *
+ *   app,permission group,true|false,MM/dd/yyyy HH:mm
+ *
+ * The bytes are the same as formatting and concatenating each line, but names are
+ * encoded once and the timestamp once per minute, so steady-state records allocate
+ * nothing. Each timestamp that is formatted uses the device's current time zone, so
+ * after a zone change only the rest of the minute already formatted keeps the old one.
+ * Not thread-safe, owned by the results writer thread.
+ */
+class ResultEncoder {
+    /** Names kept pre-encoded before the cache is started over */
+    private static final int MAX_NAMES = 512;
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+
+    private final HashMap<String, byte[]> mNames = new HashMap<>();
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
+    private final Date mDate = new Date();
+    private ByteBuffer mBuffer;
+
+    /** The formatted timestamp, valid for times in [mMinuteStart, mMinuteEnd) */
+    private byte[] mMinute;
+    private long mMinuteStart;
+    private long mMinuteEnd;
+
+    ResultEncoder(int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** Bytes encoded and not written yet */
+    int size() {
+        return mBuffer.position();
+    }
+
+    void encode(String appName, String permissionName, boolean userResponse, long time) {
+        final byte[] app = encodeName(appName);
+        final byte[] permission = encodeName(permissionName);
+        final byte[] response = userResponse ? TRUE : FALSE;
+        final byte[] minute = formatMinute(time);
+        ensureRemaining(app.length + permission.length + response.length + minute.length + 4);
+        mBuffer.put(app).put((byte) ',')
+                .put(permission).put((byte) ',')
+                .put(response).put((byte) ',')
+                .put(minute).put((byte) '\n');
+    }
+
+    /**
+     * Writes out everything encoded so far. If the write fails part way, only the bytes
+     * that did not make it stay in the buffer.
+     */
+    void writeTo(FileChannel channel) throws IOException {
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining()) {
+                channel.write(mBuffer);
+            }
+        } finally {
+            mBuffer.compact();
+        }
+    }
+
+    /**
+     * Drops the oldest lines until no more than {@code maxBytes} are left, for when they
+     * cannot be written.
+     *
+     * @return The number of lines dropped
+     */
+    int dropOldest(int maxBytes) {
+        final int size = mBuffer.position();
+        if (size <= maxBytes) {
+            return 0;
+        }
+        // Cut after the end of the line the excess ends in
+        int cut = size - maxBytes;
+        while (mBuffer.get(cut - 1) != '\n') {
+            cut++;
+        }
+        int lines = 0;
+        for (int i = 0; i < cut; i++) {
+            if (mBuffer.get(i) == '\n') {
+                lines++;
+            }
+        }
+        mBuffer.flip();
+        mBuffer.position(cut);
+        mBuffer.compact();
+        return lines;
+    }
+
+    private byte[] encodeName(String name) {
+        byte[] bytes = mNames.get(name);
+        if (bytes == null) {
+            if (mNames.size() >= MAX_NAMES) {
+                mNames.clear();
+            }
+            bytes = name.getBytes(StandardCharsets.UTF_8);
+            mNames.put(name, bytes);
+        }
+        return bytes;
+    }
+
+    private byte[] formatMinute(long time) {
+        if (mMinute != null && time >= mMinuteStart && time < mMinuteEnd) {
+            return mMinute;
+        }
+        // The default zone changes with the device's, and the format keeps the one it had
+        final TimeZone zone = TimeZone.getDefault();
+        mDateFormat.setTimeZone(zone);
+        mDate.setTime(time);
+        mMinute = mDateFormat.format(mDate).getBytes(StandardCharsets.UTF_8);
+        // The text only changes with the local minute. That is the UTC minute as long as
+        // the zone offset is whole minutes and does not change within it, otherwise only
+        // reuse it for this exact time.
+        final long start = time - Math.floorMod(time, MINUTE);
+        final int offset = zone.getOffset(start);
+        if (offset % MINUTE == 0 && zone.getOffset(start + MINUTE - 1) == offset) {
+            mMinuteStart = start;
+            mMinuteEnd = start + MINUTE;
+        } else {
+            mMinuteStart = time;
+            mMinuteEnd = time + 1;
+        }
+        return mMinute;
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (mBuffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(
+                Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes));
+        mBuffer.flip();
+        grown.put(mBuffer);
+        mBuffer = grown;
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Offline analytics over LottoTrader results pulled off devices. Runs on a plain JVM:
+ *
+ *   java ...ResultsAnalytics [--threads N] results.csv [results.bin ...]
+ *
+ * A results.manifest stands for every segment it lists, see ResultsManifest. Compressed
+ * segments are unpacked into a temporary file first so they can be mapped like the rest.
+ * Reports accept/deny counts per permission group and per app, and for results.bin
+ * files, which hold the offers, the acceptance rate per offer band of each group. Pass
+ * the numbered results-000001.bin and up too for what results.bin held before it was
+ * rotated, see ResultsColumnFile.
+ *
+ * Files are memory mapped and cut into fixed-size chunks that a fork-join pool parses
+ * independently, so memory stays bounded by the number of distinct apps and groups.
+ * Partial results are only ever summed, so any thread count gives the same numbers.
+ */
+public final class ResultsAnalytics {
+    /** Bytes of CSV, or data blocks of results.bin, handled by one leaf task */
+    private static final int CSV_CHUNK = 4 * 1024 * 1024;
+    private static final int BIN_BLOCKS_PER_TASK = 64;
+
+    /** Longest line we will look past a chunk end for */
+    private static final int MAX_LINE = 64 * 1024;
+
+    /** Width (dollars) of an offer band, offers above the last band go into it */
+    static final double OFFER_BAND = 0.10;
+    static final int OFFER_BANDS = 20;
+
+    private ResultsAnalytics() {
+    }
+
+    /** Accept/deny counts, merged by summing */
+    static final class Stats {
+        /** name -> {accepted, denied} */
+        final HashMap<String, long[]> mGroups = new HashMap<>();
+        final HashMap<String, long[]> mApps = new HashMap<>();
+        /** group -> {accepted, offered} for each offer band */
+        final HashMap<String, long[]> mOfferCurves = new HashMap<>();
+        long mMalformed;
+
+        void add(String app, String group, boolean granted, float offer) {
+            count(mGroups, group, granted);
+            count(mApps, app, granted);
+            if (offer >= 0) {
+                final int band = Math.min((int) (offer / OFFER_BAND), OFFER_BANDS - 1);
+                long[] curve = mOfferCurves.get(group);
+                if (curve == null) {
+                    curve = new long[OFFER_BANDS * 2];
+                    mOfferCurves.put(group, curve);
+                }
+                if (granted) {
+                    curve[band * 2]++;
+                }
+                curve[band * 2 + 1]++;
+            }
+        }
+
+        private static void count(HashMap<String, long[]> counts, String name,
+                boolean granted) {
+            long[] count = counts.get(name);
+            if (count == null) {
+                count = new long[2];
+                counts.put(name, count);
+            }
+            count[granted ? 0 : 1]++;
+        }
+
+        Stats merge(Stats other) {
+            sum(mGroups, other.mGroups);
+            sum(mApps, other.mApps);
+            sum(mOfferCurves, other.mOfferCurves);
+            mMalformed += other.mMalformed;
+            return this;
+        }
+
+        private static void sum(HashMap<String, long[]> into, HashMap<String, long[]> from) {
+            for (Map.Entry<String, long[]> entry : from.entrySet()) {
+                long[] counts = into.get(entry.getKey());
+                if (counts == null) {
+                    into.put(entry.getKey(), entry.getValue().clone());
+                } else {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] += entry.getValue()[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Analyzes the files with the given parallelism; 1 runs everything on one thread.
+     */
+    static Stats analyze(List<File> files, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Stats total = new Stats();
+            for (File file : files) {
+                if (file.getName().endsWith(".bin")) {
+                    final ResultsColumnFile.Reader reader = ResultsColumnFile.Reader.open(file);
+                    total.merge(pool.invoke(
+                            new BinTask(reader, 0, reader.getDataBlockCount())));
+                } else if (ResultsManifest.isCompressed(file)) {
+                    File unpacked = unpack(file);
+                    try {
+                        total.merge(analyzeCsv(unpacked, pool));
+                    } finally {
+                        unpacked.delete();
+                    }
+                } else {
+                    total.merge(analyzeCsv(file, pool));
+                }
+            }
+            return total;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Stats analyzeCsv(File file, ForkJoinPool pool) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return pool.invoke(new CsvTask(channel, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File unpack(File compressed) throws IOException {
+        File unpacked = File.createTempFile("results", ".csv");
+        InputStream in = new GZIPInputStream(new FileInputStream(compressed));
+        try {
+            FileOutputStream out = new FileOutputStream(unpacked);
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            unpacked.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        return unpacked;
+    }
+
+    /**
+     * Parses the lines that start in [start, end) of a results.csv file, in the exact
+     * format LottoTrader.addToResults writes: app,group,true|false,MM/dd/yyyy HH:mm
+     */
+    private static final class CsvTask extends RecursiveTask<Stats> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel mChannel;
+        private final long mStart;
+        private final long mEnd;
+
+        CsvTask(FileChannel channel, long start, long end) {
+            mChannel = channel;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (mEnd - mStart > CSV_CHUNK) {
+                final long middle = mStart + (mEnd - mStart) / 2;
+                CsvTask right = new CsvTask(mChannel, middle, mEnd);
+                right.fork();
+                Stats left = new CsvTask(mChannel, mStart, middle).compute();
+                return left.merge(right.join());
+            }
+            try {
+                return parse();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private Stats parse() throws IOException {
+            Stats stats = new Stats();
+            // Map one byte before the chunk to tell if it starts on a line boundary, and
+            // enough after it to finish the last line that starts inside it.
+            final long mapStart = Math.max(mStart - 1, 0);
+            final long mapEnd = Math.min(mEnd + MAX_LINE, mChannel.size());
+            if (mapEnd <= mapStart) {
+                return stats;
+            }
+            MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, mapStart,
+                    mapEnd - mapStart);
+            final int limit = (int) (mapEnd - mapStart);
+            final int chunkEnd = (int) (mEnd - mapStart);
+            int line = (int) (mStart - mapStart);
+            if (mStart > 0 && map.get(line - 1) != '\n') {
+                // Started mid-line, that line belongs to the previous chunk
+                while (line < limit && map.get(line) != '\n') {
+                    line++;
+                }
+                line++;
+            }
+            byte[] bytes = new byte[256];
+            while (line < chunkEnd) {
+                int lineEnd = line;
+                while (lineEnd < limit && map.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                final int length = lineEnd - line;
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = map.get(line + i);
+                }
+                parseLine(bytes, length, stats);
+                line = lineEnd + 1;
+            }
+            return stats;
+        }
+
+        private static void parseLine(byte[] line, int length, Stats stats) {
+            if (length == 0) {
+                return;
+            }
+            // The app label may contain commas, so find the fields from the right
+            final int dateStart = lastComma(line, length);
+            final int responseStart = lastComma(line, dateStart);
+            final int groupStart = lastComma(line, responseStart);
+            if (groupStart < 0) {
+                stats.mMalformed++;
+                return;
+            }
+            final int responseLength = dateStart - responseStart - 1;
+            final boolean granted;
+            if (responseLength == 4 && line[responseStart + 1] == 't') {
+                granted = true;
+            } else if (responseLength == 5 && line[responseStart + 1] == 'f') {
+                granted = false;
+            } else {
+                stats.mMalformed++;
+                return;
+            }
+            stats.add(new String(line, 0, groupStart, StandardCharsets.UTF_8),
+                    new String(line, groupStart + 1, responseStart - groupStart - 1,
+                            StandardCharsets.UTF_8),
+                    granted, ResultsColumnFile.NO_OFFER);
+        }
+
+        private static int lastComma(byte[] line, int before) {
+            for (int i = before - 1; i >= 0; i--) {
+                if (line[i] == ',') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** Scans a range of data blocks of a results.bin file. */
+    private static final class BinTask extends RecursiveTask<Stats> {
+        private static final long serialVersionUID = 1L;
+
+        private final ResultsColumnFile.Reader mReader;
+        private final int mFromBlock;
+        private final int mToBlock;
+
+        BinTask(ResultsColumnFile.Reader reader, int fromBlock, int toBlock) {
+            mReader = reader;
+            mFromBlock = fromBlock;
+            mToBlock = toBlock;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (mToBlock - mFromBlock > BIN_BLOCKS_PER_TASK) {
+                final int middle = (mFromBlock + mToBlock) >>> 1;
+                BinTask right = new BinTask(mReader, middle, mToBlock);
+                right.fork();
+                Stats left = new BinTask(mReader, mFromBlock, middle).compute();
+                return left.merge(right.join());
+            }
+            final Stats stats = new Stats();
+            mReader.scan(mFromBlock, mToBlock, new ResultsColumnFile.Visitor() {
+                @Override
+                public void visit(long time, int appId, int permissionId, float offer,
+                        boolean granted) {
+                    stats.add(mReader.getAppName(appId), mReader.getPermissionName(permissionId),
+                            granted, offer);
+                }
+            });
+            return stats;
+        }
+    }
+
+    static void print(Stats stats, PrintStream out) {
+        out.println("# permission groups");
+        out.println("group,accepted,denied,acceptance");
+        printCounts(stats.mGroups, out);
+        out.println();
+        out.println("# apps");
+        out.println("app,accepted,denied,acceptance");
+        printCounts(stats.mApps, out);
+        out.println();
+        out.println("# offer bands (results.bin only)");
+        out.println("group,offer_from,offer_to,accepted,offered,acceptance");
+        for (Map.Entry<String, long[]> entry : new TreeMap<>(stats.mOfferCurves).entrySet()) {
+            final long[] curve = entry.getValue();
+            for (int band = 0; band < OFFER_BANDS; band++) {
+                if (curve[band * 2 + 1] == 0) {
+                    continue;
+                }
+                out.println(quote(entry.getKey()) + ","
+                        + String.format("%.2f,%.2f", band * OFFER_BAND, (band + 1) * OFFER_BAND)
+                        + "," + curve[band * 2] + "," + curve[band * 2 + 1] + ","
+                        + rate(curve[band * 2], curve[band * 2 + 1]));
+            }
+        }
+        if (stats.mMalformed > 0) {
+            out.println();
+            out.println("# skipped " + stats.mMalformed + " malformed lines");
+        }
+    }
+
+    private static void printCounts(HashMap<String, long[]> counts, PrintStream out) {
+        for (Map.Entry<String, long[]> entry : new TreeMap<>(counts).entrySet()) {
+            final long accepted = entry.getValue()[0];
+            final long denied = entry.getValue()[1];
+            out.println(quote(entry.getKey()) + "," + accepted + "," + denied + ","
+                    + rate(accepted, accepted + denied));
+        }
+    }
+
+    private static String rate(long accepted, long total) {
+        return String.format("%.4f", total > 0 ? (double) accepted / total : 0);
+    }
+
+    private static String quote(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                parallelism = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (ResultsManifest.isManifest(new File(args[i]))) {
+                for (File segment : ResultsManifest.readManifest(new File(args[i]))) {
+                    files.add(ResultsManifest.resolve(segment));
+                }
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: ResultsAnalytics [--threads N] "
+                    + "results.csv|results.csv.gz|results.manifest|results.bin...");
+            System.exit(1);
+        }
+        print(analyze(files, parallelism), System.out);
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary, columnar form of the LottoTrader results.
+ *
+ * The file is a header followed by blocks. A dictionary block assigns ids to app and
+ * permission names the first time they are seen. A data block holds a batch of results
+ * column by column: epoch times, app ids, permission ids, offers and decisions. Every
+ * block carries a checksum, so a torn block at the end is detected and dropped.
+ *
+ * Results are appended with {@link #append} and written out as one block pair by
+ * {@link #commit}. {@link Reader} maps the file and scans the columns in place.
+ * results.csv stays the human readable view, {@link Reader#exportCsv} derives it.
+ *
+ * Once a commit would take the file past {@link #MAX_FILE_BYTES}, it is renamed to the
+ * next numbered file (results-000001.bin ...) and a new file is started with every name
+ * known so far. That keeps each file quick to open and map; numbered files are never
+ * replaced or deleted, see rotatedFiles().
+ */
+class ResultsColumnFile {
+    /** "LTR1" */
+    static final int MAGIC = 0x4C545231;
+    static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private static final int BLOCK_DICTIONARY = 1;
+    private static final int BLOCK_DATA = 2;
+
+    /** type (4) + payload length (4) */
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int BLOCK_TRAILER_SIZE = 4;
+
+    static final byte KIND_APP = 0;
+    static final byte KIND_PERMISSION = 1;
+
+    /** time (8) + app (4) + permission (4) + offer (4) + decision (1) */
+    private static final int RECORD_SIZE = 21;
+
+    /** Longest name, in UTF-8 bytes, a dictionary block can hold */
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+
+    /** Size past which the file is rotated, see rotatedFiles() */
+    static final long MAX_FILE_BYTES = 4 * 1024 * 1024;
+
+    /** Stored as the offer when none was made */
+    static final float NO_OFFER = -1;
+
+    private final File mFile;
+    private FileChannel mChannel;
+    private final HashMap<String, Integer> mAppIds = new HashMap<>();
+    private final HashMap<String, Integer> mPermissionIds = new HashMap<>();
+    private final CRC32 mCrc = new CRC32();
+
+    // Pending results, column by column
+    private long[] mTimes = new long[64];
+    private int[] mApps = new int[64];
+    private int[] mPermissions = new int[64];
+    private float[] mOffers = new float[64];
+    private byte[] mDecisions = new byte[64];
+    private int mPending;
+
+    // Names given an id since the last commit
+    private final ArrayList<String> mNewNames = new ArrayList<>();
+    private byte[] mNewKinds = new byte[16];
+    private int[] mNewIds = new int[16];
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+
+    ResultsColumnFile(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Opens the file for appending. An existing file is scanned once for its dictionary,
+     * and anything after the last intact block is cut off.
+     */
+    private void open() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        mChannel = raf.getChannel();
+        if (mChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header);
+            return;
+        }
+        Reader reader;
+        try {
+            reader = new Reader(mChannel);
+        } catch (IOException e) {
+            mChannel.close();
+            mChannel = null;
+            throw e;
+        }
+        for (int i = 0; i < reader.mAppNames.size(); i++) {
+            mAppIds.put(reader.mAppNames.get(i), i);
+        }
+        for (int i = 0; i < reader.mPermissionNames.size(); i++) {
+            mPermissionIds.put(reader.mPermissionNames.get(i), i);
+        }
+        mChannel.truncate(reader.getValidLength());
+        mChannel.position(reader.getValidLength());
+    }
+
+    /**
+     * Buffers one result until the next {@link #commit}.
+     *
+     * @param offer The amount offered, or {@link #NO_OFFER}
+     */
+    void append(String appName, String permissionName, boolean granted, long time,
+            float offer) throws IOException {
+        checkName(appName);
+        checkName(permissionName);
+        if (mChannel == null) {
+            // Ids continue from the dictionary already in the file
+            open();
+        }
+        if (mPending == mTimes.length) {
+            final int capacity = mPending * 2;
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mApps = Arrays.copyOf(mApps, capacity);
+            mPermissions = Arrays.copyOf(mPermissions, capacity);
+            mOffers = Arrays.copyOf(mOffers, capacity);
+            mDecisions = Arrays.copyOf(mDecisions, capacity);
+        }
+        mTimes[mPending] = time;
+        mApps[mPending] = idFor(KIND_APP, appName, mAppIds);
+        mPermissions[mPending] = idFor(KIND_PERMISSION, permissionName, mPermissionIds);
+        mOffers[mPending] = offer;
+        mDecisions[mPending] = (byte) (granted ? 1 : 0);
+        mPending++;
+    }
+
+    /** Names are stored with a 16-bit length, a longer one is rejected before anything is */
+    private static void checkName(String name) throws IOException {
+        // Three UTF-8 bytes per char at most, so only long names need encoding
+        if (name.length() > MAX_NAME_BYTES / 3
+                && name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IOException("Name too long for the results file: "
+                    + name.substring(0, 64) + "...");
+        }
+    }
+
+    private int idFor(byte kind, String name, HashMap<String, Integer> ids) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = ids.size();
+            ids.put(name, id);
+            addNewName(kind, name, id);
+        }
+        return id;
+    }
+
+    private void addNewName(byte kind, String name, int id) {
+        final int index = mNewNames.size();
+        if (index == mNewKinds.length) {
+            mNewKinds = Arrays.copyOf(mNewKinds, index * 2);
+            mNewIds = Arrays.copyOf(mNewIds, index * 2);
+        }
+        mNewNames.add(name);
+        mNewKinds[index] = kind;
+        mNewIds[index] = id;
+    }
+
+    /**
+     * @return The files the file was rotated into, oldest first, e.g. results-000001.bin
+     * and up for results.bin
+     */
+    static List<File> rotatedFiles(File file) {
+        return new ArrayList<>(listRotated(file).values());
+    }
+
+    /** @return The numbered files next to the file, by number */
+    private static TreeMap<Integer, File> listRotated(File file) {
+        final TreeMap<Integer, File> rotated = new TreeMap<>();
+        final File dir = file.getAbsoluteFile().getParentFile();
+        final String prefix = baseName(file) + '-';
+        final String extension = extension(file);
+        final String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(prefix) || !name.endsWith(extension)) {
+                    continue;
+                }
+                final String number = name.substring(prefix.length(),
+                        name.length() - extension.length());
+                if (number.matches("[0-9]{1,9}")) {
+                    rotated.put(Integer.parseInt(number), new File(dir, name));
+                }
+            }
+        }
+        return rotated;
+    }
+
+    /** @return The numbered file to rotate the file into, one past the last one */
+    private static File nextRotatedFile(File file) {
+        final TreeMap<Integer, File> rotated = listRotated(file);
+        final int sequence = rotated.isEmpty() ? 1 : rotated.lastKey() + 1;
+        return new File(file.getAbsoluteFile().getParentFile(),
+                String.format("%s-%06d%s", baseName(file), sequence, extension(file)));
+    }
+
+    /** @return The file name without its extension, e.g. "results" */
+    private static String baseName(File file) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /** @return The extension of the file name with its dot, e.g. ".bin" */
+    private static String extension(File file) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot) : "";
+    }
+
+    /**
+     * Moves the file to the next numbered file and starts a new one. Every name gets
+     * written again with its id, so the ids of the pending results stay valid.
+     */
+    private void rotate() throws IOException {
+        mChannel.force(false);
+        close();
+        final File rotated = nextRotatedFile(mFile);
+        if (rotated.exists() || !mFile.renameTo(rotated)) {
+            // Reopened, and appended to, by the next commit
+            throw new IOException("Could not rotate " + mFile.getName());
+        }
+        mNewNames.clear();
+        for (Map.Entry<String, Integer> entry : mAppIds.entrySet()) {
+            addNewName(KIND_APP, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : mPermissionIds.entrySet()) {
+            addNewName(KIND_PERMISSION, entry.getKey(), entry.getValue());
+        }
+        open();
+    }
+
+    /**
+     * Writes the pending names and results as one dictionary block and one data block,
+     * in a single write.
+     */
+    void commit() throws IOException {
+        if (mPending == 0) {
+            return;
+        }
+        if (mChannel == null) {
+            // Closed by a rotation that failed
+            open();
+        }
+        final long position = mChannel.position();
+        if (position > FILE_HEADER_SIZE && position + BLOCK_HEADER_SIZE + 4
+                + (long) mPending * RECORD_SIZE > MAX_FILE_BYTES) {
+            rotate();
+        }
+
+        int dictionarySize = 4;
+        for (int i = 0; i < mNewNames.size(); i++) {
+            dictionarySize += 1 + 4 + 2
+                    + mNewNames.get(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        final int dataSize = 4 + mPending * RECORD_SIZE;
+        final int total = (mNewNames.isEmpty() ? 0
+                : BLOCK_HEADER_SIZE + dictionarySize + BLOCK_TRAILER_SIZE)
+                + BLOCK_HEADER_SIZE + dataSize + BLOCK_TRAILER_SIZE;
+        if (mBuffer.capacity() < total) {
+            mBuffer = ByteBuffer.allocate(Math.max(total, mBuffer.capacity() * 2));
+        }
+        ByteBuffer buffer = mBuffer;
+        buffer.clear();
+
+        if (!mNewNames.isEmpty()) {
+            final int start = beginBlock(buffer, BLOCK_DICTIONARY, dictionarySize);
+            buffer.putInt(mNewNames.size());
+            for (int i = 0; i < mNewNames.size(); i++) {
+                byte[] name = mNewNames.get(i).getBytes(StandardCharsets.UTF_8);
+                buffer.put(mNewKinds[i]);
+                buffer.putInt(mNewIds[i]);
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+            }
+            endBlock(buffer, start);
+        }
+
+        final int dataStart = beginBlock(buffer, BLOCK_DATA, dataSize);
+        buffer.putInt(mPending);
+        for (int i = 0; i < mPending; i++) {
+            buffer.putLong(mTimes[i]);
+        }
+        for (int i = 0; i < mPending; i++) {
+            buffer.putInt(mApps[i]);
+        }
+        for (int i = 0; i < mPending; i++) {
+            buffer.putInt(mPermissions[i]);
+        }
+        for (int i = 0; i < mPending; i++) {
+            buffer.putFloat(mOffers[i]);
+        }
+        buffer.put(mDecisions, 0, mPending);
+        endBlock(buffer, dataStart);
+
+        buffer.flip();
+        final long end = mChannel.position();
+        try {
+            writeFully(buffer);
+        } catch (IOException e) {
+            // Don't leave a torn block in front of the next commit
+            mChannel.truncate(end);
+            mChannel.position(end);
+            throw e;
+        }
+        mPending = 0;
+        mNewNames.clear();
+    }
+
+    /**
+     * Drops the oldest pending results until no more than {@code maxPending} are left,
+     * for when they cannot be committed. New names stay pending.
+     *
+     * @return The number of results dropped
+     */
+    int dropOldest(int maxPending) {
+        final int dropped = mPending - maxPending;
+        if (dropped <= 0) {
+            return 0;
+        }
+        System.arraycopy(mTimes, dropped, mTimes, 0, maxPending);
+        System.arraycopy(mApps, dropped, mApps, 0, maxPending);
+        System.arraycopy(mPermissions, dropped, mPermissions, 0, maxPending);
+        System.arraycopy(mOffers, dropped, mOffers, 0, maxPending);
+        System.arraycopy(mDecisions, dropped, mDecisions, 0, maxPending);
+        mPending = maxPending;
+        return dropped;
+    }
+
+    void sync() throws IOException {
+        if (mChannel != null) {
+            mChannel.force(false);
+        }
+    }
+
+    void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private static int beginBlock(ByteBuffer buffer, int type, int payloadSize) {
+        buffer.putInt(type);
+        buffer.putInt(payloadSize);
+        return buffer.position();
+    }
+
+    private void endBlock(ByteBuffer buffer, int payloadStart) {
+        mCrc.reset();
+        mCrc.update(buffer.array(), payloadStart, buffer.position() - payloadStart);
+        buffer.putInt((int) mCrc.getValue());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    /** Receives results from {@link Reader#scan} */
+    interface Visitor {
+        void visit(long time, int appId, int permissionId, float offer, boolean granted);
+    }
+
+    /**
+     * Reads a results file through a read-only memory map. Opening walks the block
+     * headers once, scanning then reads the columns straight from the map.
+     */
+    static final class Reader {
+        private final MappedByteBuffer mMap;
+        private final ArrayList<String> mAppNames = new ArrayList<>();
+        private final ArrayList<String> mPermissionNames = new ArrayList<>();
+        private int[] mDataBlocks = new int[16];
+        private int mDataBlockCount;
+        private int mRecordCount;
+        private long mValidLength;
+
+        static Reader open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return new Reader(raf.getChannel());
+            } finally {
+                // The mapping stays valid after the channel is closed
+                raf.close();
+            }
+        }
+
+        private Reader(FileChannel channel) throws IOException {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Results file too large to map");
+            }
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < FILE_HEADER_SIZE || mMap.getInt(0) != MAGIC) {
+                throw new IOException("Not a LottoTrader results file");
+            }
+            if (mMap.getInt(4) != VERSION) {
+                throw new IOException("Unknown results file version " + mMap.getInt(4));
+            }
+            indexBlocks();
+        }
+
+        private void indexBlocks() {
+            final int size = mMap.capacity();
+            final CRC32 crc = new CRC32();
+            int offset = FILE_HEADER_SIZE;
+            while (offset + BLOCK_HEADER_SIZE <= size) {
+                final int type = mMap.getInt(offset);
+                final int length = mMap.getInt(offset + 4);
+                final int payload = offset + BLOCK_HEADER_SIZE;
+                if (length < 4 || (long) payload + length + BLOCK_TRAILER_SIZE > size) {
+                    break;
+                }
+                final ByteBuffer block = mMap.duplicate();
+                block.limit(payload + length).position(payload);
+                crc.reset();
+                crc.update(block);
+                if (mMap.getInt(payload + length) != (int) crc.getValue()) {
+                    break;
+                }
+                if (type == BLOCK_DICTIONARY) {
+                    readDictionary(payload);
+                } else if (type == BLOCK_DATA) {
+                    if (mDataBlockCount == mDataBlocks.length) {
+                        mDataBlocks = Arrays.copyOf(mDataBlocks, mDataBlockCount * 2);
+                    }
+                    mDataBlocks[mDataBlockCount++] = payload;
+                    mRecordCount += mMap.getInt(payload);
+                } else {
+                    break;
+                }
+                offset = payload + length + BLOCK_TRAILER_SIZE;
+            }
+            mValidLength = offset;
+        }
+
+        private void readDictionary(int offset) {
+            final int count = mMap.getInt(offset);
+            offset += 4;
+            for (int i = 0; i < count; i++) {
+                final byte kind = mMap.get(offset);
+                final int id = mMap.getInt(offset + 1);
+                final int length = mMap.getShort(offset + 5) & 0xFFFF;
+                byte[] bytes = new byte[length];
+                for (int j = 0; j < length; j++) {
+                    bytes[j] = mMap.get(offset + 7 + j);
+                }
+                ArrayList<String> names = kind == KIND_APP ? mAppNames : mPermissionNames;
+                while (names.size() <= id) {
+                    names.add(null);
+                }
+                names.set(id, new String(bytes, StandardCharsets.UTF_8));
+                offset += 7 + length;
+            }
+        }
+
+        int getRecordCount() {
+            return mRecordCount;
+        }
+
+        long getValidLength() {
+            return mValidLength;
+        }
+
+        String getAppName(int id) {
+            return mAppNames.get(id);
+        }
+
+        String getPermissionName(int id) {
+            return mPermissionNames.get(id);
+        }
+
+        int getAppCount() {
+            return mAppNames.size();
+        }
+
+        int getPermissionCount() {
+            return mPermissionNames.size();
+        }
+
+        int getDataBlockCount() {
+            return mDataBlockCount;
+        }
+
+        /**
+         * Visits every result in file order.
+         */
+        void scan(Visitor visitor) {
+            scan(0, mDataBlockCount, visitor);
+        }
+
+        /**
+         * Visits the results of data blocks [fromBlock, toBlock). Only reads the map, so
+         * several threads may scan disjoint ranges at once.
+         */
+        void scan(int fromBlock, int toBlock, Visitor visitor) {
+            for (int b = fromBlock; b < toBlock; b++) {
+                final int payload = mDataBlocks[b];
+                final int count = mMap.getInt(payload);
+                final int times = payload + 4;
+                final int apps = times + count * 8;
+                final int permissions = apps + count * 4;
+                final int offers = permissions + count * 4;
+                final int decisions = offers + count * 4;
+                for (int i = 0; i < count; i++) {
+                    visitor.visit(mMap.getLong(times + i * 8), mMap.getInt(apps + i * 4),
+                            mMap.getInt(permissions + i * 4), mMap.getFloat(offers + i * 4),
+                            mMap.get(decisions + i) != 0);
+                }
+            }
+        }
+
+        /**
+         * Writes the results in the results.csv line format.
+         */
+        void exportCsv(final Writer out) throws IOException {
+            final SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm");
+            final Date date = new Date();
+            final IOException[] error = new IOException[1];
+            scan(new Visitor() {
+                @Override
+                public void visit(long time, int appId, int permissionId, float offer,
+                        boolean granted) {
+                    if (error[0] != null) {
+                        return;
+                    }
+                    date.setTime(time);
+                    try {
+                        out.write(getAppName(appId) + ","
+                                + getPermissionName(permissionId) + ","
+                                + ((granted) ? "true" : "false") + ","
+                                + sdf.format(date) + "\n");
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+    }
+}
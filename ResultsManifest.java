@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the segments of a results log as ResultsSegments leaves them: the manifest that
+ * lists them in order, and the sealed segments, compressed or not. Plain Java, so the
+ * offline tools can use it too, see ResultsAnalytics.
+ */
+final class ResultsManifest {
+    static final String MANIFEST_EXTENSION = ".manifest";
+    static final String COMPRESSED_EXTENSION = ".gz";
+
+    private ResultsManifest() {
+    }
+
+    /** @return The manifest of a live results file, e.g. results.manifest for results.csv */
+    static File manifestFor(File liveFile) {
+        final String name = liveFile.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(liveFile.getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + MANIFEST_EXTENSION);
+    }
+
+    /**
+     * Lists every results file in order, following the manifest: the sealed segments,
+     * compressed or not, then the live file. Without a manifest, only the live file.
+     */
+    static List<File> listSegments(File liveFile) throws IOException {
+        try {
+            return readManifest(manifestFor(liveFile));
+        } catch (FileNotFoundException e) {
+            return Collections.singletonList(liveFile);
+        }
+    }
+
+    /** Lists the files a manifest names, in order. */
+    static List<File> readManifest(File manifest) throws IOException {
+        final File dir = manifest.getAbsoluteFile().getParentFile();
+        final ArrayList<File> files = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifest), StandardCharsets.UTF_8));
+        try {
+            String name;
+            while ((name = reader.readLine()) != null) {
+                if (!name.isEmpty()) {
+                    files.add(new File(dir, name));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return files;
+    }
+
+    /**
+     * @return The compressed copy of a segment listed by an older manifest if only that
+     * copy is left, otherwise the segment itself.
+     */
+    static File resolve(File segment) {
+        final File compressed = new File(segment.getPath() + COMPRESSED_EXTENSION);
+        return !segment.exists() && compressed.exists() ? compressed : segment;
+    }
+
+    /** @return Whether a results file is a compressed segment */
+    static boolean isCompressed(File file) {
+        return file.getName().endsWith(COMPRESSED_EXTENSION);
+    }
+
+    /** @return Whether a file is a results manifest */
+    static boolean isManifest(File file) {
+        return file.getName().endsWith(MANIFEST_EXTENSION);
+    }
+
+    /**
+     * Opens every result in order as one stream, decompressing sealed segments. A segment
+     * compressed after the manifest was read is picked up from its compressed file.
+     */
+    static InputStream openAll(File liveFile) throws IOException {
+        final ArrayList<InputStream> streams = new ArrayList<>();
+        try {
+            for (File file : listSegments(liveFile)) {
+                final File segment = resolve(file);
+                if (isCompressed(segment)) {
+                    streams.add(new GZIPInputStream(new FileInputStream(segment)));
+                } else if (segment.exists()) {
+                    streams.add(new FileInputStream(segment));
+                } else if (!file.equals(liveFile)) {
+                    throw new FileNotFoundException("Missing results segment " + file);
+                }
+            }
+        } catch (IOException e) {
+            for (InputStream stream : streams) {
+                stream.close();
+            }
+            throw e;
+        }
+        if (streams.isEmpty()) {
+            throw new FileNotFoundException(liveFile.getPath());
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+}
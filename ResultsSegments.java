@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Splits the results log into size- and age-capped segments.
+ *
+ * Results are appended to the live file (results.csv). Once it would grow past
+ * {@link #MAX_SEGMENT_BYTES}, or its first result is older than {@link #MAX_SEGMENT_AGE},
+ * it is renamed to the next sealed segment (results-000001.csv ...), which is gzipped in
+ * the background. The manifest (results.manifest) lists the sealed segments oldest first
+ * and then the live file, so readers can stream every result in order, see
+ * ResultsManifest.openAll().
+ *
+ * Nothing is ever deleted before a complete copy exists: a segment is compressed into a
+ * temporary file that is synced and renamed before the plain one goes, and the manifest
+ * is rebuilt from the files on disk at startup, so a crash at any point loses no results.
+ */
+class ResultsSegments {
+    private static final String LOG_TAG = "LottoTrader";
+
+    static final long MAX_SEGMENT_BYTES = 256 * 1024;
+    static final long MAX_SEGMENT_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /** Daemon, so a tool's process can exit while a segment is still compressed */
+    private static final ExecutorService sCompressionExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "LottoTrader-compress");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final File mDir;
+    private final File mLiveFile;
+    private final File mManifest;
+    /** Live file name without its extension, and the extension, e.g. "results", ".csv" */
+    private final String mBaseName;
+    private final String mExtension;
+    private final Pattern mSegmentPattern;
+
+    /** Guarded by this. File names of the sealed segments, oldest first */
+    private final ArrayList<String> mSealed = new ArrayList<>();
+    private int mNextSequence = 1;
+
+    /** Only used by the writer thread */
+    private FileChannel mLive;
+    private long mLiveBytes;
+    /** Time of the first result in the live file, -1 while it is empty */
+    private long mLiveStart = -1;
+
+    /**
+     * Picks up the segments already on disk and finishes any interrupted compression.
+     *
+     * @param liveFile The file results are appended to
+     */
+    ResultsSegments(File liveFile) {
+        mLiveFile = liveFile;
+        mDir = liveFile.getParentFile();
+        final String name = liveFile.getName();
+        final int dot = name.lastIndexOf('.');
+        mBaseName = dot > 0 ? name.substring(0, dot) : name;
+        mExtension = dot > 0 ? name.substring(dot) : "";
+        mManifest = ResultsManifest.manifestFor(liveFile);
+        mSegmentPattern = Pattern.compile(Pattern.quote(mBaseName) + "-(\\d+)"
+                + Pattern.quote(mExtension)
+                + "(" + Pattern.quote(ResultsManifest.COMPRESSED_EXTENSION) + ")?");
+        recover();
+    }
+
+    /**
+     * Returns the channel of the live file, sealing it first and starting a new one if
+     * appending the pending bytes would go over a cap. Only called by the writer thread.
+     */
+    FileChannel getLiveChannel(int pendingBytes, long now) throws IOException {
+        if (mLive == null) {
+            openLive();
+        }
+        if (mLiveBytes > 0 && (mLiveBytes + pendingBytes > MAX_SEGMENT_BYTES
+                || (mLiveStart >= 0 && now - mLiveStart >= MAX_SEGMENT_AGE))) {
+            try {
+                seal();
+            } catch (IOException e) {
+                // Keep appending to the live file rather than losing results
+                Log.w(LOG_TAG, "Could not seal results segment", e);
+            }
+            if (mLive == null) {
+                openLive();
+            }
+        }
+        return mLive;
+    }
+
+    /** Accounts for bytes appended to the live file */
+    void onWritten(int bytes, long now) {
+        if (mLiveStart < 0) {
+            mLiveStart = now;
+        }
+        mLiveBytes += bytes;
+    }
+
+    /** Closes the live file after a failed write, it is reopened on the next one */
+    void closeLive() {
+        if (mLive != null) {
+            try {
+                mLive.close();
+            } catch (IOException ignored) {
+            }
+            mLive = null;
+        }
+    }
+
+    private void openLive() throws IOException {
+        mLive = new FileOutputStream(mLiveFile, true).getChannel();
+        mLiveBytes = mLive.size();
+        mLiveStart = mLiveBytes > 0 ? readFirstResultTime(mLiveFile) : -1;
+    }
+
+    private void seal() throws IOException {
+        mLive.force(false);
+        closeLive();
+        final String sealedName;
+        synchronized (this) {
+            sealedName = segmentName(mNextSequence);
+            if (!mLiveFile.renameTo(new File(mDir, sealedName))) {
+                throw new IOException("Could not seal " + mLiveFile.getName());
+            }
+            mNextSequence++;
+            mSealed.add(sealedName);
+            writeManifestLocked();
+        }
+        compressInBackground(sealedName);
+    }
+
+    /**
+     * Waits for every segment sealed so far to be compressed. Only for tools that measure
+     * the results on disk.
+     */
+    static void awaitCompression() throws InterruptedException {
+        try {
+            sCompressionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void compressInBackground(final String name) {
+        sCompressionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compress(name);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not compress " + name, e);
+                }
+            }
+        });
+    }
+
+    private void compress(String name) throws IOException {
+        final File plain = new File(mDir, name);
+        final File compressed = new File(mDir, name + ResultsManifest.COMPRESSED_EXTENSION);
+        final File temp = new File(mDir,
+                name + ResultsManifest.COMPRESSED_EXTENSION + TEMP_EXTENSION);
+        FileInputStream in = new FileInputStream(plain);
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                GZIPOutputStream out = new GZIPOutputStream(fileOut, 8192);
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                out.finish();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!temp.renameTo(compressed)) {
+            throw new IOException("Could not replace " + compressed.getName());
+        }
+        synchronized (this) {
+            final int index = mSealed.indexOf(name);
+            if (index >= 0) {
+                mSealed.set(index, compressed.getName());
+            }
+            writeManifestLocked();
+        }
+        plain.delete();
+    }
+
+    /**
+     * Rebuilds the list of sealed segments from the files on disk, which are always
+     * complete, and rewrites the manifest from it.
+     */
+    private void recover() {
+        final TreeMap<Integer, String> segments = new TreeMap<>();
+        final ArrayList<String> uncompressed = new ArrayList<>();
+        final String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(mBaseName) && name.endsWith(TEMP_EXTENSION)) {
+                    // An interrupted compression, the plain segment is still there
+                    new File(mDir, name).delete();
+                    continue;
+                }
+                final Matcher matcher = mSegmentPattern.matcher(name);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                final int sequence = Integer.parseInt(matcher.group(1));
+                if (matcher.group(2) != null) {
+                    segments.put(sequence, name);
+                } else if (!segments.containsKey(sequence)) {
+                    segments.put(sequence, name);
+                }
+            }
+        }
+        for (String name : segments.values()) {
+            if (name.endsWith(ResultsManifest.COMPRESSED_EXTENSION)) {
+                // Compressed and renamed before the plain segment could be deleted
+                new File(mDir, name.substring(0, name.length()
+                        - ResultsManifest.COMPRESSED_EXTENSION.length())).delete();
+            } else {
+                uncompressed.add(name);
+            }
+        }
+        synchronized (this) {
+            mSealed.addAll(segments.values());
+            if (!segments.isEmpty()) {
+                mNextSequence = segments.lastKey() + 1;
+            }
+            try {
+                writeManifestLocked();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not write results manifest", e);
+            }
+        }
+        for (String name : uncompressed) {
+            compressInBackground(name);
+        }
+    }
+
+    private void writeManifestLocked() throws IOException {
+        final File temp = new File(mDir, mManifest.getName() + TEMP_EXTENSION);
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            Writer out = new OutputStreamWriter(fileOut, StandardCharsets.UTF_8);
+            for (String name : mSealed) {
+                out.write(name);
+                out.write('\n');
+            }
+            out.write(mLiveFile.getName());
+            out.write('\n');
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(mManifest)) {
+            throw new IOException("Could not replace " + mManifest.getName());
+        }
+    }
+
+    private String segmentName(int sequence) {
+        return String.format("%s-%06d%s", mBaseName, sequence, mExtension);
+    }
+
+    /**
+     * @return The time of the first result of a results file, or now in LottoTrader's
+     * time if it cannot be read, which only delays the age cap.
+     */
+    private static long readFirstResultTime(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8));
+            try {
+                final String line = reader.readLine();
+                final int dateStart = line != null ? line.lastIndexOf(',') : -1;
+                if (dateStart >= 0) {
+                    return new SimpleDateFormat("MM/dd/yyyy HH:mm")
+                            .parse(line.substring(dateStart + 1)).getTime();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | ParseException e) {
+            Log.w(LOG_TAG, "Could not read first result time", e);
+        }
+        return LottoTrader.currentTimeMillis();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends LottoTrader results on a dedicated writer thread.
+ *
+ * Callers only enqueue a record. The writer drains whatever has piled up and commits it
+ * as one write to a file it keeps open, once enough bytes are pending, once the oldest
+ * pending record is old enough, or when asked to flush. If the queue fills up, callers
+ * block until the writer catches up. Each commit goes to results.csv, which
+ * ResultsSegments rotates and compresses once it is large or old enough, and, with the
+ * offer amounts, to the columnar results file. Records are recycled and lines are encoded by a
+ * ResultEncoder, so a steady stream of results does not allocate.
+ */
+class ResultsWriter {
+    private static final String LOG_TAG = "LottoTrader";
+
+    private static final int QUEUE_CAPACITY = 256;
+
+    /** Pending bytes that trigger a write */
+    private static final int FLUSH_BYTES = 4 * 1024;
+
+    /** Longest time (ms) a record may wait before it is written */
+    private static final long FLUSH_INTERVAL = 2000;
+
+    /**
+     * Most bytes kept pending while writes keep failing. Older lines are dropped, about
+     * 5000 records.
+     */
+    private static final int MAX_PENDING_BYTES = 64 * FLUSH_BYTES;
+
+    /** Same for the columnar results */
+    private static final int MAX_PENDING_COLUMNS = 5000;
+
+    private static final Result FLUSH = new Result();
+
+    private final File mFile;
+    private final File mColumnFile;
+    private final ResultsColumnFile mColumns;
+    private final BlockingQueue<Result> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /** Records the writer is done with, reused by append() */
+    private final BlockingQueue<Result> mFreeResults = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * @param file The CSV results file
+     * @param columnFile The columnar results file, see ResultsColumnFile
+     */
+    ResultsWriter(File file, File columnFile) {
+        mFile = file;
+        mColumnFile = columnFile;
+        mColumns = new ResultsColumnFile(columnFile);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, "LottoTrader-results");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues one result line. Only blocks if the writer has fallen a full queue behind.
+     *
+     * @param offer The amount offered, or ResultsColumnFile.NO_OFFER
+     */
+    void append(String appName, String permissionName, boolean userResponse, long time,
+            float offer) throws IOException {
+        Result result = obtain();
+        result.set(appName, permissionName, userResponse, time, offer);
+        enqueue(result);
+    }
+
+    /**
+     * Queues every decision of a batch as one chain of records. The writer commits the
+     * whole chain in a single write, and syncs it, as soon as it gets to it.
+     *
+     * @param onWritten Run on the writer thread once the chain is forced to both results
+     * files. Writes that fail keep it waiting for the next one that succeeds.
+     */
+    void appendAll(DecisionBatch batch, Runnable onWritten) throws IOException {
+        Result head = null;
+        Result tail = null;
+        for (int i = 0; i < batch.size(); i++) {
+            final DecisionBatch.Decision decision = batch.get(i);
+            Result result = obtain();
+            result.set(decision.mAppName, decision.mGroupName, decision.mGranted,
+                    decision.mTime, decision.mOffer >= 0 ? (float) decision.mOffer
+                            : ResultsColumnFile.NO_OFFER);
+            if (head == null) {
+                head = result;
+            } else {
+                tail.mNext = result;
+            }
+            tail = result;
+        }
+        if (head != null) {
+            head.mCommitNow = true;
+            head.mOnWritten = onWritten;
+            enqueue(head);
+        }
+    }
+
+    /**
+     * Whether the last decision of a batch is in the columnar results, the record
+     * results.csv is derived from. Reads the whole file, only for replaying batches on
+     * load, see LottoTrader.replayDecisions().
+     */
+    boolean isWritten(DecisionBatch batch) {
+        if (batch.isEmpty() || !mColumnFile.exists()) {
+            return false;
+        }
+        final DecisionBatch.Decision last = batch.get(batch.size() - 1);
+        final ResultsColumnFile.Reader reader;
+        try {
+            reader = ResultsColumnFile.Reader.open(mColumnFile);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read columnar results", e);
+            return false;
+        }
+        final boolean[] found = new boolean[1];
+        reader.scan(new ResultsColumnFile.Visitor() {
+            @Override
+            public void visit(long time, int appId, int permissionId, float offer,
+                    boolean granted) {
+                if (time == last.mTime && granted == last.mGranted
+                        && reader.getAppName(appId).equals(last.mAppName)
+                        && reader.getPermissionName(permissionId).equals(last.mGroupName)) {
+                    found[0] = true;
+                }
+            }
+        });
+        return found[0];
+    }
+
+    private Result obtain() {
+        Result result = mFreeResults.poll();
+        return result != null ? result : new Result();
+    }
+
+    private void enqueue(Result result) throws IOException {
+        if (mQueue.offer(result)) {
+            return;
+        }
+        Log.w(LOG_TAG, "Results queue full, waiting for writer");
+        try {
+            mQueue.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted queueing result");
+        }
+    }
+
+    /**
+     * Asks the writer to commit everything queued so far. Does not wait for it. If the
+     * queue is full the writer is busy anyway and will get to the pending records.
+     */
+    void flush() {
+        mQueue.offer(FLUSH);
+    }
+
+    /**
+     * Commits everything queued so far and waits until it is written, or failed to be.
+     * Only for tools, see LottoTrader.awaitResults().
+     */
+    void flushAndWait() throws InterruptedException {
+        Result marker = new Result();
+        marker.mWritten = new CountDownLatch(1);
+        mQueue.put(marker);
+        marker.mWritten.await();
+    }
+
+    private void writeLoop() {
+        ResultEncoder pending = new ResultEncoder(FLUSH_BYTES * 2);
+        ArrayList<Result> batch = new ArrayList<>(QUEUE_CAPACITY);
+        ResultsSegments segments = new ResultsSegments(mFile);
+        long oldestPending = 0;
+        // Markers from flushAndWait() released by the next commit
+        ArrayList<CountDownLatch> waiting = new ArrayList<>();
+        // Callbacks of chains from appendAll(), run once a commit gets both files out
+        ArrayList<Runnable> written = new ArrayList<>();
+
+        while (true) {
+            boolean flushRequested = false;
+            try {
+                Result first;
+                if (pending.size() == 0) {
+                    first = mQueue.take();
+                } else {
+                    long wait = oldestPending + FLUSH_INTERVAL - System.currentTimeMillis();
+                    first = mQueue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                }
+                if (first != null) {
+                    batch.add(first);
+                    mQueue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                flushRequested = true;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                Result result = batch.get(i);
+                if (result == FLUSH) {
+                    flushRequested = true;
+                    continue;
+                }
+                if (result.mWritten != null) {
+                    waiting.add(result.mWritten);
+                    flushRequested = true;
+                    continue;
+                }
+                if (result.mCommitNow) {
+                    flushRequested = true;
+                }
+                if (result.mOnWritten != null) {
+                    written.add(result.mOnWritten);
+                }
+                if (pending.size() == 0) {
+                    oldestPending = System.currentTimeMillis();
+                }
+                // A chain from appendAll() is encoded whole, so it goes out in one write
+                Result next;
+                for (; result != null; result = next) {
+                    next = result.mNext;
+                    pending.encode(result.mAppName, result.mPermissionName,
+                            result.mUserResponse, result.mTime);
+                    try {
+                        mColumns.append(result.mAppName, result.mPermissionName,
+                                result.mUserResponse, result.mTime, result.mOffer);
+                    } catch (IOException e) {
+                        // Still in results.csv
+                        Log.w(LOG_TAG, "Could not add to columnar results", e);
+                    }
+                    result.set(null, null, false, 0, 0);
+                    mFreeResults.offer(result);
+                }
+            }
+            batch.clear();
+
+            if (pending.size() == 0) {
+                release(waiting);
+                continue;
+            }
+            if (flushRequested || pending.size() >= FLUSH_BYTES
+                    || System.currentTimeMillis() - oldestPending >= FLUSH_INTERVAL) {
+                final long start = PromptMetrics.start();
+                final int bytes = pending.size();
+                try {
+                    // Rotated by the time of the records, which tools may simulate
+                    FileChannel out = segments.getLiveChannel(bytes,
+                            LottoTrader.currentTimeMillis());
+                    pending.writeTo(out);
+                    segments.onWritten(bytes, LottoTrader.currentTimeMillis());
+                    if (flushRequested) {
+                        out.force(false);
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not write to disk", e);
+                    PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+                    // Reopened, and its size read again, on the next commit
+                    segments.closeLive();
+                    // Keep what was not written and retry once the interval passes again
+                    oldestPending = System.currentTimeMillis();
+                    dropOverflow(pending);
+                    release(waiting);
+                    continue;
+                }
+                try {
+                    mColumns.commit();
+                    if (flushRequested) {
+                        mColumns.sync();
+                    }
+                    runAll(written);
+                } catch (IOException e) {
+                    // The records stay buffered for the next commit, and so do the callbacks
+                    Log.w(LOG_TAG, "Could not write columnar results", e);
+                    PromptMetrics.count(PromptMetrics.DISK_ERRORS, 1);
+                    dropOverflow(pending);
+                }
+                PromptMetrics.stop(PromptMetrics.RESULT_COMMIT, start);
+                PromptMetrics.count(PromptMetrics.RESULT_BYTES_WRITTEN, bytes);
+                release(waiting);
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest pending records once too many have piled up behind failing writes,
+     * so the writer does not run out of memory. Each one dropped counts as a disk error.
+     */
+    private void dropOverflow(ResultEncoder pending) {
+        final int dropped = pending.dropOldest(MAX_PENDING_BYTES)
+                + mColumns.dropOldest(MAX_PENDING_COLUMNS);
+        if (dropped > 0) {
+            Log.w(LOG_TAG, "Dropped " + dropped + " results that could not be written");
+            PromptMetrics.count(PromptMetrics.DISK_ERRORS, dropped);
+        }
+    }
+
+    private static void release(ArrayList<CountDownLatch> waiting) {
+        for (int i = 0; i < waiting.size(); i++) {
+            waiting.get(i).countDown();
+        }
+        waiting.clear();
+    }
+
+    private static void runAll(ArrayList<Runnable> callbacks) {
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).run();
+        }
+        callbacks.clear();
+    }
+
+    private static final class Result {
+        String mAppName;
+        String mPermissionName;
+        boolean mUserResponse;
+        long mTime;
+        float mOffer;
+        /** Next record of a chain queued by appendAll() */
+        Result mNext;
+        /** Set on the head of a chain, which is committed without waiting */
+        boolean mCommitNow;
+        /** Optionally set on the head of a chain, see appendAll() */
+        Runnable mOnWritten;
+        /** Only set on a marker queued by flushAndWait() */
+        CountDownLatch mWritten;
+
+        void set(String appName, String permissionName, boolean userResponse, long time,
+                float offer) {
+            mNext = null;
+            mCommitNow = false;
+            mOnWritten = null;
+            mAppName = appName;
+            mPermissionName = permissionName;
+            mUserResponse = userResponse;
+            mTime = time;
+            mOffer = offer;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Starts RevocationScheduler and hands it what it is woken for: its alarm, boot, a package
+ * being added, removed, replaced or changed, and decisions a prompt has recorded. Declared
+ * in the manifest for ACTION_BOOT_COMPLETED, ACTION_MY_PACKAGE_REPLACED, which both clear
+ * the alarm, and the package broadcasts, so the scheduler runs whether or not a prompt
+ * was shown since the process started.
+ */
+public class RevocationReceiver extends BroadcastReceiver {
+    /** Sent by the scheduler's alarm */
+    static final String ACTION_REVOKE_DUE =
+            "com.android.packageinstaller.permission.action.REVOKE_DUE";
+
+    /** Sent by a prompt that recorded decisions, see onDecisionsRecorded() */
+    static final String ACTION_DECISIONS_RECORDED =
+            "com.android.packageinstaller.permission.action.DECISIONS_RECORDED";
+
+    /**
+     * Has the scheduler look at every deadline again, as new grants and offers may bring
+     * one forward. Call once the decisions are committed to LottoTrader.
+     */
+    static void onDecisionsRecorded(Context context) {
+        context.sendBroadcast(new Intent(context, RevocationReceiver.class)
+                .setAction(ACTION_DECISIONS_RECORDED));
+    }
+
+    @Override
+    public void onReceive(Context context, final Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        LottoTrader.get(appContext).whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                // Schedules every package the first time
+                final RevocationScheduler scheduler = RevocationScheduler.get(appContext);
+                final String action = intent.getAction();
+                final Uri data = intent.getData();
+                if (ACTION_REVOKE_DUE.equals(action)) {
+                    scheduler.onAlarm();
+                } else if (ACTION_DECISIONS_RECORDED.equals(action)) {
+                    scheduler.rescheduleAll();
+                } else if (data != null) {
+                    scheduler.onPackageChanged(data.getSchemeSpecificPart());
+                }
+                // Keeps the process around until the revocations are done
+                scheduler.whenIdle(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.finish();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.packageinstaller.permission.model.AppPermissionGroup;
+import com.android.packageinstaller.permission.model.AppPermissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes granted permission groups away in the background once a trigger rule fires for
+ * them, see TriggerRuleEngine.
+ *
+ * Each package has at most one deadline, the earliest time the rules may fire for any of
+ * its grants. Deadlines are rounded up to {@link #DEADLINE_ALIGNMENT} and kept in a heap
+ * on a timer thread, with one inexact AlarmManager alarm set for the earliest, so
+ * hundreds of apps due around the same time cost one wakeup, shared with whatever else
+ * the system has due then. Due packages go to a small executor, where each gets one
+ * permission model and all of its fired groups revoked together, before its next
+ * deadline is set.
+ *
+ * Nothing here keeps the process alive. RevocationReceiver starts the scheduler when the
+ * alarm goes off, at boot, when a package changes and when a prompt has recorded
+ * decisions, and the deadlines are rebuilt from the trigger state each time it starts.
+ * The alarm outlives the process, and boot, which clears it, starts the scheduler again.
+ */
+class RevocationScheduler {
+    private static final String LOG_TAG = "RevocationScheduler";
+
+    /** Deadlines are rounded up to this (ms), so close ones share a wakeup */
+    private static final long DEADLINE_ALIGNMENT = 60 * 1000;
+
+    /** Packages revoked at the same time */
+    private static final int MAX_CONCURRENT_PACKAGES = 2;
+
+    private static RevocationScheduler sInstance;
+
+    private final Context mContext;
+    private final TriggerRuleEngine mTriggers;
+    private final Handler mTimerHandler;
+    private final ThreadPoolExecutor mExecutor;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+
+    /** Only used on the timer thread. Deadline of each package with one */
+    private final HashMap<String, Long> mDeadlines = new HashMap<>();
+    /** Only used on the timer thread. May hold stale entries, see mDeadlines */
+    private final PriorityQueue<Deadline> mQueue = new PriorityQueue<>();
+    /** Only used on the timer thread. Packages handed to the executor */
+    private final HashSet<String> mRunning = new HashSet<>();
+    /** Only used on the timer thread. Run once nothing is running, see whenIdle() */
+    private final ArrayList<Runnable> mIdleCallbacks = new ArrayList<>();
+    /** Only used on the timer thread. Time the alarm is set for, or Long.MAX_VALUE */
+    private long mArmedFor = Long.MAX_VALUE;
+
+    private static final class Deadline implements Comparable<Deadline> {
+        final long mTime;
+        final String mPackageName;
+
+        Deadline(long time, String packageName) {
+            mTime = time;
+            mPackageName = packageName;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return Long.compare(mTime, other.mTime);
+        }
+    }
+
+    private RevocationScheduler(Context context, TriggerRuleEngine triggers) {
+        mContext = context;
+        mTriggers = triggers;
+        HandlerThread timerThread = new HandlerThread("LottoTrader-revoke-timer",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        timerThread.start();
+        mTimerHandler = new Handler(timerThread.getLooper());
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_PACKAGES, MAX_CONCURRENT_PACKAGES,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "LottoTrader-revoke");
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mAlarmIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(context, RevocationReceiver.class)
+                        .setAction(RevocationReceiver.ACTION_REVOKE_DUE),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Returns the scheduler of this process, starting it on the first call. Only call
+     * once LottoTrader is loaded, see LottoTrader.whenLoaded(). Only RevocationReceiver
+     * starts it.
+     */
+    static RevocationScheduler get(Context context) {
+        synchronized (RevocationScheduler.class) {
+            if (sInstance == null) {
+                sInstance = new RevocationScheduler(context.getApplicationContext(),
+                        LottoTrader.get(context).getTriggers());
+                sInstance.rescheduleAll();
+            }
+            return sInstance;
+        }
+    }
+
+    /** Revokes whatever is due, the alarm went off. */
+    void onAlarm() {
+        mTimerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mArmedFor = Long.MAX_VALUE;
+                runDue(System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Sets every package's deadline again. Decisions change the grants of the package
+     * they are for, and offers the estimate every grant of the group is measured against.
+     */
+    void rescheduleAll() {
+        mTimerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                for (String packageName : mTriggers.getPackages()) {
+                    schedule(packageName, mTriggers.nextPackageCheckTime(packageName, now));
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the callback on the timer thread once no package is being revoked, after
+     * everything asked of the scheduler so far.
+     */
+    void whenIdle(final Runnable callback) {
+        mTimerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning.isEmpty()) {
+                    callback.run();
+                } else {
+                    mIdleCallbacks.add(callback);
+                }
+            }
+        });
+    }
+
+    /** The package was added, removed, replaced or changed. */
+    void onPackageChanged(final String packageName) {
+        mTimerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mContext.getPackageManager().getPackageInfo(packageName, 0);
+                } catch (NameNotFoundException e) {
+                    mTriggers.onPackageRemoved(packageName);
+                }
+                // Updated, or removed and so never due again
+                schedule(packageName, mTriggers.nextPackageCheckTime(packageName,
+                        System.currentTimeMillis()));
+            }
+        });
+    }
+
+    /** On the timer thread */
+    private void schedule(String packageName, long time) {
+        if (time == Long.MAX_VALUE) {
+            if (mDeadlines.remove(packageName) != null) {
+                armAlarm();
+            }
+            return;
+        }
+        final long deadline = (time + DEADLINE_ALIGNMENT - 1)
+                / DEADLINE_ALIGNMENT * DEADLINE_ALIGNMENT;
+        final Long current = mDeadlines.get(packageName);
+        if (current != null && current == deadline) {
+            return;
+        }
+        mDeadlines.put(packageName, deadline);
+        mQueue.add(new Deadline(deadline, packageName));
+        armAlarm();
+    }
+
+    /** On the timer thread. Hands every due package to the executor. */
+    private void runDue(long now) {
+        Deadline head;
+        while ((head = mQueue.peek()) != null && head.mTime <= now) {
+            mQueue.poll();
+            final Long current = mDeadlines.get(head.mPackageName);
+            if (current == null || current != head.mTime) {
+                // Rescheduled since
+                continue;
+            }
+            mDeadlines.remove(head.mPackageName);
+            if (!mRunning.add(head.mPackageName)) {
+                // Rescheduled when the running one is done
+                continue;
+            }
+            final String packageName = head.mPackageName;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revokeFired(packageName);
+                    } finally {
+                        mTimerHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRunning.remove(packageName);
+                                schedule(packageName, mTriggers.nextPackageCheckTime(
+                                        packageName, System.currentTimeMillis()));
+                                if (mRunning.isEmpty()) {
+                                    runIdleCallbacks();
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        armAlarm();
+    }
+
+    /** On the timer thread */
+    private void runIdleCallbacks() {
+        for (Runnable callback : mIdleCallbacks) {
+            callback.run();
+        }
+        mIdleCallbacks.clear();
+    }
+
+    /** On the timer thread. Sets the alarm for the earliest deadline, or cancels it. */
+    private void armAlarm() {
+        // Drop stale heads, so the alarm is not set for nothing
+        Deadline head;
+        while ((head = mQueue.peek()) != null) {
+            final Long current = mDeadlines.get(head.mPackageName);
+            if (current != null && current == head.mTime) {
+                break;
+            }
+            mQueue.poll();
+        }
+        if (head == null) {
+            if (mArmedFor != Long.MAX_VALUE) {
+                mAlarmManager.cancel(mAlarmIntent);
+                mArmedFor = Long.MAX_VALUE;
+            }
+            return;
+        }
+        if (head.mTime == mArmedFor) {
+            return;
+        }
+        // Replaces the one set before, by this process or an earlier one
+        mArmedFor = head.mTime;
+        mAlarmManager.setWindow(AlarmManager.RTC_WAKEUP, head.mTime, DEADLINE_ALIGNMENT,
+                mAlarmIntent);
+    }
+
+    /** On the executor. Revokes every group of the package a rule fires for. */
+    private void revokeFired(final String packageName) {
+        final ArrayList<String> groups = new ArrayList<>();
+        final ArrayList<Integer> rules = new ArrayList<>();
+        mTriggers.checkPackage(packageName, System.currentTimeMillis(),
+                new TriggerRuleEngine.Listener() {
+            @Override
+            public void onTriggered(String packageName, String groupName, int rule) {
+                groups.add(groupName);
+                rules.add(rule);
+            }
+        });
+        if (groups.isEmpty()) {
+            return;
+        }
+        final PackageInfo packageInfo;
+        try {
+            packageInfo = mContext.getPackageManager().getPackageInfo(packageName,
+                    PackageManager.GET_PERMISSIONS);
+        } catch (NameNotFoundException e) {
+            mTriggers.onPackageRemoved(packageName);
+            return;
+        }
+        // One model for all of the package's groups, not shared with any prompt
+        final AppPermissions appPermissions = new AppPermissions(mContext, packageInfo, null,
+                false, null);
+        final TriggerRules triggerRules = mTriggers.getRules();
+        for (int i = 0; i < groups.size(); i++) {
+            final AppPermissionGroup group = appPermissions.getPermissionGroup(groups.get(i));
+            if (group != null && group.areRuntimePermissionsGranted()
+                    && !group.isPolicyFixed()) {
+                group.revokeRuntimePermissions(false);
+                Log.i(LOG_TAG, "Revoked " + groups.get(i) + " from " + packageName + ": "
+                        + triggerRules.describe(rules.get(i)));
+            }
+            mTriggers.onRevoked(packageName, groups.get(i));
+        }
+    }
+}
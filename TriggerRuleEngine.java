@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides which granted permission groups should be taken away again, by the rules in
+ * TriggerRules.
+ *
+ * LottoTrader reports every decision here, and for each (package, group) the engine keeps
+ * when it was last granted and denied, the app label it was prompted under, and the
+ * offer that was accepted. LottoTrader keeps denials only for the wait period, these are
+ * kept for good. The current offer state is read from LottoTrader through Signals when a
+ * grant is checked. Each pair holds on to its compiled table until the rules change, so
+ * a check is O(1) per group and re-checking every app is cheap.
+ *
+ * Safe to use from any thread. Facts are saved in the background, like OfferBoundarySearch's.
+ */
+class TriggerRuleEngine {
+    private static final String LOG_TAG = "LottoTrader";
+
+    private static final int STATE_VERSION = 1;
+
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    /** What the rules read from LottoTrader */
+    interface Signals {
+        /**
+         * @return The current estimate of what users accept for the group across every
+         * app, in dollars. It keeps moving while a grant is held.
+         */
+        double getGroupEstimate(String groupName);
+    }
+
+    /** Told about each grant a rule fires for */
+    interface Listener {
+        void onTriggered(String packageName, String groupName, int rule);
+    }
+
+    /** What is known of one (package, group), see getHistory() */
+    static final class History {
+        /** Negative while the group is not granted */
+        final long mTimeOfGrant;
+        /** The offer accepted with the grant, negative if there was none */
+        final float mOffer;
+        /** Negative if never denied */
+        final long mTimeOfDenial;
+
+        History(long timeOfGrant, float offer, long timeOfDenial) {
+            mTimeOfGrant = timeOfGrant;
+            mOffer = offer;
+            mTimeOfDenial = timeOfDenial;
+        }
+    }
+
+    private static final class Pair {
+        String mAppName;
+        /** Negative while the group is not granted */
+        long mTimeOfGrant = -1;
+        /** The offer accepted with the grant, negative if there was none */
+        float mOffer = -1;
+        /** Negative if never denied */
+        long mTimeOfDenial = -1;
+        /** Compiled on the first check, cleared when the rules change */
+        TriggerRules.Table mTable;
+
+        Pair(String appName) {
+            mAppName = appName;
+        }
+    }
+
+    private final File mStateFile;
+    private final File mRulesFile;
+    private final Signals mSignals;
+
+    /** Guarded by this. Pairs by package, then by group */
+    private final HashMap<String, HashMap<String, Pair>> mPairs = new HashMap<>();
+    private TriggerRules mRules = TriggerRules.parse(TriggerRules.DEFAULT_RULES);
+    private boolean mSaveScheduled;
+    /** Guarded by this. Set once load() has read the saved state, nothing is saved before */
+    private boolean mStateRead;
+    /** Guarded by this. A save was asked for before the saved state was read */
+    private boolean mSaveDeferred;
+    /** Guarded by this. Scratch feature values for checks */
+    private final double[] mValues = new double[TriggerRules.FEATURES];
+
+    /**
+     * @param stateFile Where the grants are kept
+     * @param rulesFile Rules to use instead of TriggerRules.DEFAULT_RULES, if it exists
+     */
+    TriggerRuleEngine(File stateFile, File rulesFile, Signals signals) {
+        mStateFile = stateFile;
+        mRulesFile = rulesFile;
+        mSignals = signals;
+    }
+
+    /**
+     * Reads the rules and the decisions made so far. Decisions recorded before this are
+     * kept, merged with the saved ones.
+     */
+    void load() {
+        try {
+            setRules(TriggerRules.parse(readText(mRulesFile)));
+        } catch (FileNotFoundException e) {
+            // Default rules
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Could not read trigger rules, using defaults", e);
+        }
+        try {
+            readState();
+        } catch (FileNotFoundException e) {
+            // Nothing granted yet
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read trigger state", e);
+        } finally {
+            final boolean saveDeferred;
+            synchronized (this) {
+                mStateRead = true;
+                saveDeferred = mSaveDeferred;
+            }
+            if (saveDeferred) {
+                scheduleSave();
+            }
+        }
+    }
+
+    /** Replaces the rules, dropping every table compiled from the old ones. */
+    synchronized void setRules(TriggerRules rules) {
+        mRules = rules;
+        for (HashMap<String, Pair> groups : mPairs.values()) {
+            for (Pair pair : groups.values()) {
+                pair.mTable = null;
+            }
+        }
+    }
+
+    synchronized TriggerRules getRules() {
+        return mRules;
+    }
+
+    /**
+     * Records that the user granted the group to the package.
+     *
+     * @param offer The offer accepted, negative if there was none
+     */
+    void onGranted(String packageName, String appName, String groupName, double offer,
+            long time) {
+        synchronized (this) {
+            final Pair pair = getOrCreate(packageName, appName, groupName);
+            pair.mTimeOfGrant = time;
+            pair.mOffer = offer >= 0 ? (float) offer : -1;
+        }
+        scheduleSave();
+    }
+
+    /** Records that the user denied the group to the package. */
+    void onDenied(String packageName, String appName, String groupName, long time) {
+        synchronized (this) {
+            final Pair pair = getOrCreate(packageName, appName, groupName);
+            pair.mTimeOfGrant = -1;
+            pair.mOffer = -1;
+            pair.mTimeOfDenial = time;
+        }
+        scheduleSave();
+    }
+
+    /** Records that the group was taken away from the package other than by a denial. */
+    void onRevoked(String packageName, String groupName) {
+        synchronized (this) {
+            final HashMap<String, Pair> groups = mPairs.get(packageName);
+            final Pair pair = groups != null ? groups.get(groupName) : null;
+            if (pair == null || pair.mTimeOfGrant < 0) {
+                return;
+            }
+            pair.mTimeOfGrant = -1;
+            pair.mOffer = -1;
+        }
+        scheduleSave();
+    }
+
+    private Pair getOrCreate(String packageName, String appName, String groupName) {
+        HashMap<String, Pair> groups = mPairs.get(packageName);
+        if (groups == null) {
+            groups = new HashMap<>();
+            mPairs.put(packageName, groups);
+        }
+        Pair pair = groups.get(groupName);
+        if (pair == null) {
+            pair = new Pair(appName);
+            groups.put(groupName, pair);
+        }
+        pair.mAppName = appName;
+        return pair;
+    }
+
+    /**
+     * @return The grant and denial recorded for the pair, null if it was never prompted
+     */
+    synchronized History getHistory(String packageName, String groupName) {
+        final HashMap<String, Pair> groups = mPairs.get(packageName);
+        final Pair pair = groups != null ? groups.get(groupName) : null;
+        return pair != null ? new History(pair.mTimeOfGrant, pair.mOffer, pair.mTimeOfDenial)
+                : null;
+    }
+
+    /** Forgets everything about an uninstalled package. */
+    void onPackageRemoved(String packageName) {
+        synchronized (this) {
+            if (mPairs.remove(packageName) == null) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * @return The next time checkPackage() may fire for any grant of the package: now if
+     * a rule already fires, Long.MAX_VALUE if none ever will with nothing but time passing
+     */
+    synchronized long nextPackageCheckTime(String packageName, long now) {
+        final HashMap<String, Pair> groups = mPairs.get(packageName);
+        if (groups == null) {
+            return Long.MAX_VALUE;
+        }
+        long next = Long.MAX_VALUE;
+        for (Map.Entry<String, Pair> entry : groups.entrySet()) {
+            final Pair pair = entry.getValue();
+            if (pair.mTimeOfGrant < 0) {
+                continue;
+            }
+            final TriggerRules.Table table = tableFor(packageName, entry.getKey(), pair);
+            final double[] values = featuresOf(pair, entry.getKey(), now);
+            if (table.evaluate(values) != TriggerRules.NONE) {
+                return now;
+            }
+            final long wait = table.timeToNextCell(values);
+            if (wait != Long.MAX_VALUE) {
+                next = Math.min(next, now + wait);
+            }
+        }
+        return next;
+    }
+
+    /** @return Every package something is known about */
+    synchronized String[] getPackages() {
+        return mPairs.keySet().toArray(new String[mPairs.size()]);
+    }
+
+    /** Checks every grant of the package. */
+    void checkPackage(String packageName, long now, Listener listener) {
+        HashMap<String, Integer> fired = null;
+        synchronized (this) {
+            final HashMap<String, Pair> groups = mPairs.get(packageName);
+            if (groups == null) {
+                return;
+            }
+            for (Map.Entry<String, Pair> entry : groups.entrySet()) {
+                if (entry.getValue().mTimeOfGrant < 0) {
+                    continue;
+                }
+                final int rule = tableFor(packageName, entry.getKey(), entry.getValue())
+                        .evaluate(featuresOf(entry.getValue(), entry.getKey(), now));
+                if (rule != TriggerRules.NONE) {
+                    if (fired == null) {
+                        fired = new HashMap<>();
+                    }
+                    fired.put(entry.getKey(), rule);
+                }
+            }
+        }
+        if (fired == null) {
+            return;
+        }
+        // Outside the lock, the listener may well revoke
+        for (Map.Entry<String, Integer> entry : fired.entrySet()) {
+            listener.onTriggered(packageName, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private TriggerRules.Table tableFor(String packageName, String groupName, Pair pair) {
+        if (pair.mTable == null) {
+            pair.mTable = mRules.tableFor(packageName, groupName);
+        }
+        return pair.mTable;
+    }
+
+    /** Fills mValues, NaN for what is unknown. */
+    private double[] featuresOf(Pair pair, String groupName, long now) {
+        final double[] values = mValues;
+        values[TriggerRules.GRANTED_FOR] = now - pair.mTimeOfGrant;
+        values[TriggerRules.SINCE_DENIAL] = pair.mTimeOfDenial >= 0
+                ? now - pair.mTimeOfDenial : Double.NaN;
+        values[TriggerRules.OFFER_GAP] = pair.mOffer >= 0
+                ? mSignals.getGroupEstimate(groupName) - pair.mOffer : Double.NaN;
+        return values;
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (!mStateRead) {
+                // Saved once load() has merged in what is on disk, not over it
+                mSaveDeferred = true;
+                return;
+            }
+            if (mSaveScheduled) {
+                return;
+            }
+            mSaveScheduled = true;
+        }
+        sSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeState();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not write trigger state", e);
+                }
+            }
+        });
+    }
+
+    private void writeState() throws IOException {
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            synchronized (this) {
+                mSaveScheduled = false;
+                out.writeInt(STATE_VERSION);
+                out.writeInt(mPairs.size());
+                for (Map.Entry<String, HashMap<String, Pair>> entry : mPairs.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (Map.Entry<String, Pair> group : entry.getValue().entrySet()) {
+                        final Pair pair = group.getValue();
+                        out.writeUTF(group.getKey());
+                        out.writeUTF(pair.mAppName);
+                        out.writeLong(pair.mTimeOfGrant);
+                        out.writeFloat(pair.mOffer);
+                        out.writeLong(pair.mTimeOfDenial);
+                    }
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(mStateFile)) {
+            throw new IOException("Could not replace " + mStateFile.getName());
+        }
+    }
+
+    private void readState() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mStateFile)));
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                throw new IOException("Unknown trigger state version");
+            }
+            final int packages = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < packages; i++) {
+                    final String packageName = in.readUTF();
+                    final int count = in.readInt();
+                    HashMap<String, Pair> groups = mPairs.get(packageName);
+                    if (groups == null) {
+                        groups = new HashMap<>();
+                        mPairs.put(packageName, groups);
+                    }
+                    for (int j = 0; j < count; j++) {
+                        final String groupName = in.readUTF();
+                        final Pair pair = new Pair(in.readUTF());
+                        pair.mTimeOfGrant = in.readLong();
+                        pair.mOffer = in.readFloat();
+                        pair.mTimeOfDenial = in.readLong();
+                        final Pair recorded = groups.get(groupName);
+                        if (recorded == null) {
+                            groups.put(groupName, pair);
+                        } else {
+                            // Recorded since start up, so its grant is the newer one
+                            recorded.mTimeOfDenial = Math.max(recorded.mTimeOfDenial,
+                                    pair.mTimeOfDenial);
+                        }
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The conditions under which a granted permission group is taken away again, compiled
+ * into decision tables.
+ *
+ * A rule is one line: a permission group and a package, either of which may be *, then
+ * one or more conditions joined by "and". For example
+ *
+ *   android.permission-group.LOCATION * granted_for > 7d
+ *   * com.example.app offer_gap >= 0.5 and granted_for > 1h
+ *
+ * Conditions compare a feature with <, <=, > or >=. The features are granted_for and
+ * since_denial, times with a unit of ms, s, m, h or d, and offer_gap, how many dollars
+ * the group-wide offer estimate, learned from every app's prompts for the group, is now
+ * above the offer accepted for the grant. It moves while the grant is held, as other apps
+ * are answered. A condition on a feature that is unknown for a grant, such as
+ * since_denial for a pair never denied, is false. Text after # is a comment.
+ *
+ * The rules that apply to a (package, group) are compiled once into a Table. Each
+ * feature's thresholds cut its range into cells, every combination of cells is
+ * evaluated up front, and checking a grant is then a binary search over a handful of
+ * thresholds per feature and one array read.
+ */
+final class TriggerRules {
+    static final int GRANTED_FOR = 0;
+    static final int SINCE_DENIAL = 1;
+    static final int OFFER_GAP = 2;
+    static final int FEATURES = 3;
+
+    private static final String[] FEATURE_NAMES = { "granted_for", "since_denial", "offer_gap" };
+
+    /** Returned by Table.evaluate() when no rule fires */
+    static final int NONE = -1;
+
+    /** Tables with more cells are not built, their rules are evaluated one by one */
+    private static final int MAX_TABLE_CELLS = 1 << 16;
+
+    private static final String ANY = "*";
+
+    /** Used when there is no rules file */
+    static final String DEFAULT_RULES =
+            "# Location is only lent for a week\n"
+            + "android.permission-group.LOCATION * granted_for > 7d\n"
+            + "# Nothing is kept for more than a month without asking again\n"
+            + "* * granted_for > 30d\n"
+            + "# Grants for the group now go for well over what this one was bought for\n"
+            + "* * offer_gap > 0.5\n"
+            + "# Granted soon after a denial, ask again after a day\n"
+            + "* * since_denial < 2d and granted_for > 1d\n";
+
+    private final Rule[] mRules;
+    /** Guarded by this. Compiled tables by package + '\0' + group */
+    private final HashMap<String, Table> mTables = new HashMap<>();
+
+    private static final class Condition {
+        final int mFeature;
+        /** -1 for <, -2 for <=, 1 for >, 2 for >= */
+        final int mOp;
+        final double mThreshold;
+
+        Condition(int feature, int op, double threshold) {
+            mFeature = feature;
+            mOp = op;
+            mThreshold = threshold;
+        }
+
+        boolean holds(double value) {
+            switch (mOp) {
+                case -1: return value < mThreshold;
+                case -2: return value <= mThreshold;
+                case 1: return value > mThreshold;
+                default: return value >= mThreshold;
+            }
+        }
+    }
+
+    private static final class Rule {
+        final String mText;
+        /** Null for any */
+        final String mGroup;
+        final String mPackage;
+        final Condition[] mConditions;
+
+        Rule(String text, String group, String packageName, Condition[] conditions) {
+            mText = text;
+            mGroup = group;
+            mPackage = packageName;
+            mConditions = conditions;
+        }
+
+        boolean appliesTo(String packageName, String group) {
+            return (mGroup == null || mGroup.equals(group))
+                    && (mPackage == null || mPackage.equals(packageName));
+        }
+
+        /** NaN stands for an unknown feature, and no condition holds for it */
+        boolean fires(double[] values) {
+            for (Condition condition : mConditions) {
+                if (!condition.holds(values[condition.mFeature])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private TriggerRules(Rule[] rules) {
+        mRules = rules;
+    }
+
+    /**
+     * @throws IllegalArgumentException If a line is not a valid rule
+     */
+    static TriggerRules parse(String text) {
+        ArrayList<Rule> rules = new ArrayList<>();
+        final String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                rules.add(parseRule(line));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return new TriggerRules(rules.toArray(new Rule[rules.size()]));
+    }
+
+    private static Rule parseRule(String line) {
+        final String[] tokens = line.split("\\s+");
+        if (tokens.length < 5 || (tokens.length - 2) % 4 != 3) {
+            throw new IllegalArgumentException("Expected: group package feature op value"
+                    + " [and feature op value]...");
+        }
+        final Condition[] conditions = new Condition[(tokens.length - 1) / 4];
+        for (int i = 0; i < conditions.length; i++) {
+            final int first = 2 + i * 4;
+            if (i > 0 && !"and".equals(tokens[first - 1])) {
+                throw new IllegalArgumentException("Expected \"and\", got " + tokens[first - 1]);
+            }
+            final int feature = Arrays.asList(FEATURE_NAMES).indexOf(tokens[first]);
+            if (feature < 0) {
+                throw new IllegalArgumentException("Unknown feature " + tokens[first]);
+            }
+            conditions[i] = new Condition(feature, parseOp(tokens[first + 1]),
+                    feature == OFFER_GAP ? parseNumber(tokens[first + 2])
+                            : parseDuration(tokens[first + 2]));
+        }
+        return new Rule(line, ANY.equals(tokens[0]) ? null : tokens[0],
+                ANY.equals(tokens[1]) ? null : tokens[1], conditions);
+    }
+
+    private static int parseOp(String op) {
+        switch (op) {
+            case "<": return -1;
+            case "<=": return -2;
+            case ">": return 1;
+            case ">=": return 2;
+            default: throw new IllegalArgumentException("Unknown operator " + op);
+        }
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+
+    /** @return The duration in ms */
+    private static double parseDuration(String value) {
+        int unitStart = value.length();
+        while (unitStart > 0 && Character.isLetter(value.charAt(unitStart - 1))) {
+            unitStart--;
+        }
+        final double amount = parseNumber(value.substring(0, unitStart));
+        switch (value.substring(unitStart)) {
+            case "ms": return amount;
+            case "s": return amount * 1000;
+            case "m": return amount * 60 * 1000;
+            case "h": return amount * 60 * 60 * 1000;
+            case "d": return amount * 24 * 60 * 60 * 1000;
+            default: throw new IllegalArgumentException("Missing or unknown unit: " + value);
+        }
+    }
+
+    int size() {
+        return mRules.length;
+    }
+
+    /** @return The text of a rule, as returned by Table.evaluate() */
+    String describe(int rule) {
+        return mRules[rule].mText;
+    }
+
+    /**
+     * @return The compiled rules for the pair, built on first use
+     */
+    synchronized Table tableFor(String packageName, String group) {
+        final String key = packageName + '\u0000' + group;
+        Table table = mTables.get(key);
+        if (table == null) {
+            table = compile(packageName, group);
+            mTables.put(key, table);
+        }
+        return table;
+    }
+
+    private Table compile(String packageName, String group) {
+        ArrayList<Integer> applicable = new ArrayList<>();
+        for (int i = 0; i < mRules.length; i++) {
+            if (mRules[i].appliesTo(packageName, group)) {
+                applicable.add(i);
+            }
+        }
+        final int[] ruleIds = new int[applicable.size()];
+        for (int i = 0; i < ruleIds.length; i++) {
+            ruleIds[i] = applicable.get(i);
+        }
+        return new Table(mRules, ruleIds);
+    }
+
+    /**
+     * The rules that apply to one (package, group), as a table over the cells of each
+     * feature. Immutable, so it can be kept and evaluated on any thread.
+     */
+    static final class Table {
+        private final Rule[] mRules;
+        private final int[] mRuleIds;
+        /** Sorted distinct thresholds of each feature */
+        private final double[][] mThresholds = new double[FEATURES][];
+        /** Cell of each feature times its stride gives the table index */
+        private final int[] mStrides = new int[FEATURES];
+        /** First rule that fires in each cell, plus one, 0 for none. Null if too big */
+        private final int[] mCells;
+
+        Table(Rule[] rules, int[] ruleIds) {
+            mRules = rules;
+            mRuleIds = ruleIds;
+            long cells = 1;
+            for (int feature = 0; feature < FEATURES; feature++) {
+                double[] thresholds = new double[0];
+                for (int id : ruleIds) {
+                    for (Condition condition : rules[id].mConditions) {
+                        if (condition.mFeature == feature && Arrays.binarySearch(thresholds,
+                                condition.mThreshold) < 0) {
+                            thresholds = Arrays.copyOf(thresholds, thresholds.length + 1);
+                            thresholds[thresholds.length - 1] = condition.mThreshold;
+                            Arrays.sort(thresholds);
+                        }
+                    }
+                }
+                mThresholds[feature] = thresholds;
+                mStrides[feature] = (int) Math.min(cells, Integer.MAX_VALUE);
+                cells *= cellCount(thresholds);
+            }
+            mCells = cells <= MAX_TABLE_CELLS ? build((int) cells) : null;
+        }
+
+        /** Unknown, then below, at and above each threshold in turn */
+        private static int cellCount(double[] thresholds) {
+            return 2 * thresholds.length + 2;
+        }
+
+        private static int cellOf(double[] thresholds, double value) {
+            if (Double.isNaN(value)) {
+                return 0;
+            }
+            final int index = Arrays.binarySearch(thresholds, value);
+            return index >= 0 ? 2 * index + 2 : 2 * (-index - 1) + 1;
+        }
+
+        /** A value that falls in the cell */
+        private static double valueIn(double[] thresholds, int cell) {
+            if (cell == 0) {
+                return Double.NaN;
+            }
+            if (cell % 2 == 0) {
+                return thresholds[cell / 2 - 1];
+            }
+            final int above = (cell - 1) / 2;
+            if (thresholds.length == 0) {
+                return 0;
+            } else if (above == 0) {
+                return thresholds[0] - 1;
+            } else if (above == thresholds.length) {
+                return thresholds[above - 1] + 1;
+            }
+            return (thresholds[above - 1] + thresholds[above]) / 2;
+        }
+
+        private int[] build(int cells) {
+            final int[] table = new int[cells];
+            final double[] values = new double[FEATURES];
+            for (int index = 0; index < cells; index++) {
+                int rest = index;
+                for (int feature = FEATURES - 1; feature >= 0; feature--) {
+                    values[feature] = valueIn(mThresholds[feature], rest / mStrides[feature]);
+                    rest %= mStrides[feature];
+                }
+                table[index] = evaluateRules(values) + 1;
+            }
+            return table;
+        }
+
+        private int evaluateRules(double[] values) {
+            for (int id : mRuleIds) {
+                if (mRules[id].fires(values)) {
+                    return id;
+                }
+            }
+            return NONE;
+        }
+
+        /**
+         * @param values The features of a grant, NaN where unknown
+         * @return The first rule that fires, see TriggerRules.describe(), or NONE
+         */
+        int evaluate(double[] values) {
+            if (mRuleIds.length == 0) {
+                return NONE;
+            }
+            if (mCells == null) {
+                return evaluateRules(values);
+            }
+            int index = 0;
+            for (int feature = 0; feature < FEATURES; feature++) {
+                index += cellOf(mThresholds[feature], values[feature]) * mStrides[feature];
+            }
+            return mCells[index] - 1;
+        }
+
+        /**
+         * @return How long (ms) until the time features, which only grow, take the grant
+         * into another cell and its outcome may change, or Long.MAX_VALUE if they never do
+         */
+        long timeToNextCell(double[] values) {
+            return Math.min(timeToNextThreshold(mThresholds[GRANTED_FOR], values[GRANTED_FOR]),
+                    timeToNextThreshold(mThresholds[SINCE_DENIAL], values[SINCE_DENIAL]));
+        }
+
+        private static long timeToNextThreshold(double[] thresholds, double value) {
+            if (Double.isNaN(value)) {
+                return Long.MAX_VALUE;
+            }
+            for (double threshold : thresholds) {
+                if (threshold >= value) {
+                    // Just past it, where both > and >= hold
+                    return (long) (threshold - value) + 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
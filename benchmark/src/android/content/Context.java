@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Off-device stand-in for the parts of Context that LottoTrader uses. The real class
+ * only exists as stubs outside a device, so the benchmarks compile against this one.
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0x0000;
+    public static final int MODE_APPEND = 0x8000;
+
+    public abstract Context getApplicationContext();
+
+    public abstract File getFilesDir();
+
+    public FileInputStream openFileInput(String name) throws FileNotFoundException {
+        return new FileInputStream(new File(getFilesDir(), name));
+    }
+
+    public FileOutputStream openFileOutput(String name, int mode)
+            throws FileNotFoundException {
+        return new FileOutputStream(new File(getFilesDir(), name),
+                (mode & MODE_APPEND) != 0);
+    }
+}
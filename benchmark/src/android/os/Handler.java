@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Off-device stand-in for Handler, running callbacks on the looper's thread.
+ */
+public class Handler {
+    private final Looper mLooper;
+    private final IdentityHashMap<Runnable, ArrayList<ScheduledFuture<?>>> mPending =
+            new IdentityHashMap<>();
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(final Runnable r, long delayMillis) {
+        synchronized (mPending) {
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            future[0] = mLooper.mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPending) {
+                        ArrayList<ScheduledFuture<?>> futures = mPending.get(r);
+                        if (futures != null && futures.remove(future[0])
+                                && futures.isEmpty()) {
+                            mPending.remove(r);
+                        }
+                    }
+                    r.run();
+                }
+            }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+            ArrayList<ScheduledFuture<?>> futures = mPending.get(r);
+            if (futures == null) {
+                futures = new ArrayList<>();
+                mPending.put(r, futures);
+            }
+            futures.add(future[0]);
+        }
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        synchronized (mPending) {
+            ArrayList<ScheduledFuture<?>> futures = mPending.remove(r);
+            if (futures != null) {
+                for (ScheduledFuture<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+import java.util.HashSet;
+
+/**
+ * Off-device stand-in for Log, writing to stderr. Each message is only printed the first
+ * time, so a warning on a hot path does not end up measuring the console.
+ */
+public final class Log {
+    private static final HashSet<String> sPrinted = new HashSet<>();
+
+    private Log() {
+    }
+
+    public static int w(String tag, String msg) {
+        return w(tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        synchronized (sPrinted) {
+            if (!sPrinted.add(tag + msg)) {
+                return 0;
+            }
+        }
+        System.err.println("W/" + tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return 0;
+    }
+}
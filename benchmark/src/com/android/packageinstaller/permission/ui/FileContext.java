@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Context whose files dir is a fresh temporary directory, so LottoTrader can run
+ * against a real file system off-device.
+ */
+class FileContext extends Context {
+    private final File mFilesDir;
+
+    FileContext(File filesDir) {
+        mFilesDir = filesDir;
+    }
+
+    static FileContext createTemporary() throws IOException {
+        return new FileContext(Files.createTempDirectory("lottotrader").toFile());
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    /** Deletes the files dir and everything in it */
+    void delete() {
+        File[] files = mFilesDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFilesDir.delete();
+    }
+}
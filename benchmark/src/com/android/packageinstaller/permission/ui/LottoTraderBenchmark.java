@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for LottoTrader's hot paths, run off-device against a temporary files
+ * dir, see FileContext. Every benchmark is parameterized by the number of packages and
+ * of recent denials per package, so costs can be compared as both grow.
+ *
+ * Lookups and appends are measured in steady state, restore as the whole of load() on a
+ * fresh LottoTrader, the way the first prompt after boot pays for it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class LottoTraderBenchmark {
+    private static final String PACKAGE_PREFIX = "com.example.benchmark.app";
+    private static final String GROUP_PREFIX = "android.permission-group.BENCHMARK_";
+    private static final String NEVER_DENIED_GROUP = GROUP_PREFIX + "NEVER_DENIED";
+
+    /** A loaded LottoTrader holding packageCount x denialsPerPackage recent denials */
+    @State(Scope.Benchmark)
+    public static class Denials {
+        @Param({"10", "100", "1000"})
+        public int packageCount;
+
+        @Param({"1", "4", "16"})
+        public int denialsPerPackage;
+
+        FileContext mContext;
+        LottoTrader mTrader;
+        String[] mPackages;
+        String[] mGroups;
+        private long mSavedWaitPeriod;
+        private int mNext;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mSavedWaitPeriod = LottoTrader.DENIED_WAIT_PERIOD;
+            LottoTrader.DENIED_WAIT_PERIOD = waitPeriod();
+            mContext = FileContext.createTemporary();
+            mPackages = names(PACKAGE_PREFIX, packageCount);
+            mGroups = names(GROUP_PREFIX, denialsPerPackage);
+            mTrader = new LottoTrader(mContext);
+            mTrader.load();
+            for (String packageName : mPackages) {
+                for (String group : mGroups) {
+                    mTrader.addRecentDenial(packageName, group);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            mTrader.close();
+            mContext.delete();
+            LottoTrader.DENIED_WAIT_PERIOD = mSavedWaitPeriod;
+        }
+
+        /** Wait period the LottoTrader is created with */
+        long waitPeriod() {
+            return LottoTrader.DENIED_WAIT_PERIOD;
+        }
+
+        /** Steps through every (package, group) pair, returns the index of the next one */
+        int next() {
+            final int pair = mNext;
+            mNext = (pair + 1) % (packageCount * denialsPerPackage);
+            return pair;
+        }
+
+        String packageOf(int pair) {
+            return mPackages[pair / denialsPerPackage];
+        }
+
+        String groupOf(int pair) {
+            return mGroups[pair % denialsPerPackage];
+        }
+    }
+
+    /**
+     * Same as Denials with no wait period, so every denial replaces the previous one and
+     * pays for the whole persist path instead of being turned away.
+     */
+    @State(Scope.Benchmark)
+    public static class Redenials extends Denials {
+        @Override
+        long waitPeriod() {
+            return 0;
+        }
+    }
+
+    /**
+     * Files left behind by a device that has run for a while: every denial in the
+     * recent denials table.
+     */
+    @State(Scope.Benchmark)
+    public static class SavedDenials {
+        @Param({"10", "100", "1000"})
+        public int packageCount;
+
+        @Param({"1", "4", "16"})
+        public int denialsPerPackage;
+
+        FileContext mContext;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mContext = FileContext.createTemporary();
+            LottoTrader trader = new LottoTrader(mContext);
+            trader.load();
+            for (String packageName : names(PACKAGE_PREFIX, packageCount)) {
+                for (String group : names(GROUP_PREFIX, denialsPerPackage)) {
+                    trader.addRecentDenial(packageName, group);
+                }
+            }
+            trader.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mContext.delete();
+        }
+    }
+
+    /**
+     * Files left behind by an older version: every denial compacted into the serialized
+     * recent denials snapshot, and no table yet. Written again before every invocation,
+     * as the first load migrates and deletes it.
+     */
+    @State(Scope.Benchmark)
+    public static class LegacyDenials {
+        @Param({"10", "100", "1000"})
+        public int packageCount;
+
+        @Param({"1", "4", "16"})
+        public int denialsPerPackage;
+
+        FileContext mContext;
+        private Hashtable<String, LinkedList<PermissionDenial>> mDenials;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mContext = FileContext.createTemporary();
+            final long now = System.currentTimeMillis();
+            mDenials = new Hashtable<>();
+            for (String packageName : names(PACKAGE_PREFIX, packageCount)) {
+                LinkedList<PermissionDenial> list = new LinkedList<>();
+                for (String group : names(GROUP_PREFIX, denialsPerPackage)) {
+                    list.add(new PermissionDenial(group, now));
+                }
+                mDenials.put(packageName, list);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void writeSnapshot() throws IOException {
+            new File(mContext.getFilesDir(), LottoTrader.RECENT_DENIALS_TABLE_FILENAME).delete();
+            new File(mContext.getFilesDir(),
+                    LottoTrader.RECENT_DENIALS_JOURNAL_FILENAME).delete();
+            new File(mContext.getFilesDir(),
+                    LottoTrader.RECENT_DENIALS_JOURNAL_FILENAME + ".sealed").delete();
+            new File(mContext.getFilesDir(),
+                    LottoTrader.RECENT_DENIALS_NAMES_FILENAME).delete();
+            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(
+                    new File(mContext.getFilesDir(), LottoTrader.RECENT_DENIALS_FILENAME)));
+            try {
+                out.writeObject(mDenials);
+            } finally {
+                out.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mContext.delete();
+        }
+    }
+
+    @Benchmark
+    public long checkIfDeniedRecentlyHit(Denials state) {
+        final int pair = state.next();
+        return state.mTrader.checkIfDeniedRecently(state.packageOf(pair), state.groupOf(pair));
+    }
+
+    @Benchmark
+    public long checkIfDeniedRecentlyMiss(Denials state) {
+        final int pair = state.next();
+        return state.mTrader.checkIfDeniedRecently(state.packageOf(pair), NEVER_DENIED_GROUP);
+    }
+
+    /** Rejected during the wait period, nothing is written */
+    @Benchmark
+    public boolean addRecentDenialRejected(Denials state) throws IOException {
+        final int pair = state.next();
+        return state.mTrader.addRecentDenial(state.packageOf(pair), state.groupOf(pair));
+    }
+
+    /** Replaces an expired denial in place in the mapped table */
+    @Benchmark
+    public boolean addRecentDenialPersisted(Redenials state) throws IOException {
+        final int pair = state.next();
+        return state.mTrader.addRecentDenial(state.packageOf(pair), state.groupOf(pair));
+    }
+
+    /** Hands the result to the results writer, waiting only when its queue is full */
+    @Benchmark
+    public void addToResults(Denials state) throws IOException {
+        final int pair = state.next();
+        state.mTrader.addToResults(state.packageOf(pair), state.groupOf(pair),
+                (pair & 1) == 0, 1.25);
+    }
+
+    @Benchmark
+    public LottoTrader restoreRecentDenials(SavedDenials state) throws IOException {
+        LottoTrader trader = new LottoTrader(state.mContext);
+        trader.load();
+        trader.close();
+        return trader;
+    }
+
+    @Benchmark
+    public LottoTrader migrateRecentDenials(LegacyDenials state) throws IOException {
+        LottoTrader trader = new LottoTrader(state.mContext);
+        trader.load();
+        trader.close();
+        return trader;
+    }
+
+    private static String[] names(String prefix, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = prefix + i;
+        }
+        return names;
+    }
+}
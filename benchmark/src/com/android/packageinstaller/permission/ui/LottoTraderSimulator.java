@@ -0,0 +1,620 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.packageinstaller.permission.ui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs weeks of permission requests through LottoTrader on a plain JVM, on a simulated
+ * clock, against a temporary files dir, see FileContext.
+ *
+ * Requests are either synthesized, many apps with a few permission groups each, popular
+ * apps asking more often, or replayed from a trace. An app that was denied may come back
+ * several times within DENIED_WAIT_PERIOD. Each (app, group) pair has a simulated user
+ * with a hidden threshold who accepts an offer at or above it, and answers the other way
+ * every so often. Granted pairs stop asking until the trigger rules take them back, which
+ * are checked every simulated hour.
+ *
+ * Prints one line per simulated day and a summary: throughput, decision latency, bytes on
+ * disk and how close the offers are to the users' thresholds. Everything but the timings
+ * and the exact bytes on disk, which depend on when the background writers run, is the
+ * same for the same seed and options.
+ *
+ * Usage: LottoTraderSimulator [--seed n] [--apps n] [--days n] [--requests-per-day n]
+ *         [--burst p] [--noise p] [--never p] [--trace file] [--dir dir]
+ */
+public class LottoTraderSimulator {
+    private static final String PACKAGE_PREFIX = "com.example.sim.app";
+
+    private static final String[] GROUPS = {
+            "android.permission-group.CALENDAR",
+            "android.permission-group.CAMERA",
+            "android.permission-group.CONTACTS",
+            "android.permission-group.LOCATION",
+            "android.permission-group.MICROPHONE",
+            "android.permission-group.PHONE",
+            "android.permission-group.SENSORS",
+            "android.permission-group.SMS",
+            "android.permission-group.STORAGE",
+    };
+
+    /** Most permission groups a synthesized app asks for */
+    private static final int MAX_GROUPS_PER_APP = 3;
+
+    /** Most re-requests in one burst after a denial */
+    private static final int MAX_BURST = 4;
+
+    /** 2026-01-01 00:00 UTC, where every run starts unless a trace says otherwise */
+    private static final long START_TIME = 1767225600000L;
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /** An offer this close to the threshold, as a fraction of the cutoff, has converged */
+    private static final double CONVERGED = 0.1;
+
+    // Options
+    private long mSeed = 1;
+    private int mAppCount = 100;
+    private int mDays = 28;
+    private int mRequestsPerDay = 500;
+    /** Probability a denied app asks again within the wait period */
+    private double mBurst = 0.5;
+    /** Probability the user answers against their threshold */
+    private double mNoise = 0.1;
+    /** Probability a pair's user never accepts any offer below the cutoff */
+    private double mNever = 0.1;
+    private File mTrace;
+    private File mDir;
+
+    private final SimulatedClock mClock = new SimulatedClock();
+    private Random mWorld;
+    private Random mUsers;
+    private LottoTrader mTrader;
+    private FileContext mContext;
+
+    private String[] mPackages;
+    private String[][] mAppGroups;
+    /** Cumulative Zipf weights of the apps, for picking who asks next */
+    private double[] mPopularity;
+
+    private final PriorityQueue<Request> mRequests = new PriorityQueue<>();
+    private long mNextSequence;
+    private final HashMap<String, Pair> mPairs = new HashMap<>();
+
+    // Totals
+    private final Stats mTotal = new Stats();
+    private long mRevocations;
+    private long mDecisionNanos;
+
+    /** A permission request at a simulated time, ties broken by when it was queued */
+    private static final class Request implements Comparable<Request> {
+        final long mTime;
+        final long mSequence;
+        final String mPackageName;
+        final String mGroupName;
+        final boolean mBurst;
+
+        Request(long time, long sequence, String packageName, String groupName,
+                boolean burst) {
+            mTime = time;
+            mSequence = sequence;
+            mPackageName = packageName;
+            mGroupName = groupName;
+            mBurst = burst;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /** The simulated user of one (app, group) pair */
+    private static final class Pair {
+        final String mPackageName;
+        final String mGroupName;
+        /** Least offer the user accepts, infinite if none below the cutoff */
+        final double mThreshold;
+        boolean mGranted;
+        boolean mPrompted;
+
+        Pair(String packageName, String groupName, double threshold) {
+            mPackageName = packageName;
+            mGroupName = groupName;
+            mThreshold = threshold;
+        }
+    }
+
+    private static final class SimulatedClock implements LottoTrader.Clock {
+        volatile long mNow = START_TIME;
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    }
+
+    /** Counts over a day or the whole run */
+    private static final class Stats {
+        long mRequests;
+        long mAlreadyGranted;
+        long mTurnedAway;
+        long mAccepted;
+        long mDenied;
+        long mBursts;
+        long[] mLatencies = new long[1024];
+        int mDecisions;
+
+        void addLatency(long nanos) {
+            if (mDecisions == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mDecisions * 2);
+            }
+            mLatencies[mDecisions++] = nanos;
+        }
+
+        /** Sorts the latencies, call before percentile() */
+        void sort() {
+            Arrays.sort(mLatencies, 0, mDecisions);
+        }
+
+        long percentile(double percent) {
+            if (mDecisions == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(percent / 100 * mDecisions) - 1;
+            return mLatencies[Math.max(0, Math.min(index, mDecisions - 1))];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LottoTraderSimulator simulator = new LottoTraderSimulator();
+        try {
+            simulator.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LottoTraderSimulator [--seed n] [--apps n] [--days n]"
+                    + " [--requests-per-day n] [--burst p] [--noise p] [--never p]"
+                    + " [--trace file] [--dir dir]");
+            System.exit(2);
+        }
+        simulator.run();
+        // The offer and trigger state savers keep their threads around
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String option = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            final String value = args[++i];
+            try {
+                switch (option) {
+                    case "--seed":
+                        mSeed = Long.parseLong(value);
+                        break;
+                    case "--apps":
+                        mAppCount = Integer.parseInt(value);
+                        break;
+                    case "--days":
+                        mDays = Integer.parseInt(value);
+                        break;
+                    case "--requests-per-day":
+                        mRequestsPerDay = Integer.parseInt(value);
+                        break;
+                    case "--burst":
+                        mBurst = Double.parseDouble(value);
+                        break;
+                    case "--noise":
+                        mNoise = Double.parseDouble(value);
+                        break;
+                    case "--never":
+                        mNever = Double.parseDouble(value);
+                        break;
+                    case "--trace":
+                        mTrace = new File(value);
+                        break;
+                    case "--dir":
+                        mDir = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+            }
+        }
+        if (mAppCount <= 0 || mDays <= 0 || mRequestsPerDay <= 0) {
+            throw new IllegalArgumentException("--apps, --days and --requests-per-day must"
+                    + " be positive");
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        // Separate streams, so changing how users answer does not change who asks when
+        mWorld = new Random(mSeed);
+        mUsers = new Random(mSeed * 31 + 1);
+        long end;
+        if (mTrace != null) {
+            end = readTrace();
+        } else {
+            createApps();
+            mRequests.add(nextArrival(mClock.mNow));
+            end = START_TIME + mDays * DAY;
+        }
+        if (mDir != null) {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("Could not create " + mDir);
+            }
+            mContext = new FileContext(mDir);
+        } else {
+            mContext = FileContext.createTemporary();
+        }
+        LottoTrader.setClock(mClock);
+        mTrader = new LottoTrader(mContext);
+        mTrader.load();
+
+        System.out.printf(Locale.US, "seed %d, %s, wait period %d ms, cutoff $%.2f%n", mSeed,
+                mTrace != null ? "trace " + mTrace : mAppCount + " apps, " + mDays + " days, "
+                        + mRequestsPerDay + " requests/day", LottoTrader.DENIED_WAIT_PERIOD,
+                LottoTrader.LT_OFFER_CUTOFF);
+        System.out.println("day  requests  granted-skip  turned-away  accepted  denied"
+                + "  p99-us  offer-error  converged  disk-bytes");
+
+        final long start = mClock.mNow;
+        long nextHour = start + HOUR;
+        long nextDay = start + DAY;
+        int day = 1;
+        Stats today = new Stats();
+        while (!mRequests.isEmpty() && mRequests.peek().mTime < end) {
+            final Request request = mRequests.poll();
+            while (request.mTime >= nextHour) {
+                mClock.mNow = nextHour;
+                checkTriggers();
+                if (nextHour == nextDay) {
+                    printDay(day++, today);
+                    today = new Stats();
+                    nextDay += DAY;
+                }
+                nextHour += HOUR;
+            }
+            mClock.mNow = request.mTime;
+            handle(request, today);
+            if (mTrace == null && !request.mBurst) {
+                mRequests.add(nextArrival(request.mTime));
+            }
+        }
+        mClock.mNow = Math.max(mClock.mNow, end);
+        printDay(day, today);
+
+        mTrader.close();
+        printSummary();
+        if (mDir == null) {
+            mContext.delete();
+        }
+    }
+
+    private void createApps() {
+        mPackages = new String[mAppCount];
+        mAppGroups = new String[mAppCount][];
+        mPopularity = new double[mAppCount];
+        double total = 0;
+        for (int i = 0; i < mAppCount; i++) {
+            mPackages[i] = PACKAGE_PREFIX + i;
+            final String[] groups = GROUPS.clone();
+            // First few of a seeded shuffle
+            for (int j = groups.length - 1; j > 0; j--) {
+                final int k = mWorld.nextInt(j + 1);
+                final String swap = groups[j];
+                groups[j] = groups[k];
+                groups[k] = swap;
+            }
+            mAppGroups[i] = Arrays.copyOf(groups, 1 + mWorld.nextInt(MAX_GROUPS_PER_APP));
+            total += 1.0 / (i + 1);
+            mPopularity[i] = total;
+        }
+        for (int i = 0; i < mAppCount; i++) {
+            mPopularity[i] /= total;
+        }
+    }
+
+    /** The next request of the Poisson stream, from an app picked by popularity */
+    private Request nextArrival(long after) {
+        final double gap = -Math.log(1 - mWorld.nextDouble()) * DAY / mRequestsPerDay;
+        int app = Arrays.binarySearch(mPopularity, mWorld.nextDouble());
+        app = Math.min(app < 0 ? -app - 1 : app, mAppCount - 1);
+        final String[] groups = mAppGroups[app];
+        return new Request(after + Math.max(1, Math.round(gap)), mNextSequence++,
+                mPackages[app], groups[mWorld.nextInt(groups.length)], false);
+    }
+
+    /**
+     * Reads a trace of "time,package,group" lines, time in epoch ms. Blank lines and
+     * lines starting with # are skipped.
+     *
+     * @return The end of the run, just past the last request
+     */
+    private long readTrace() throws IOException {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        BufferedReader reader = new BufferedReader(new FileReader(mTrace));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split(",");
+                if (fields.length != 3) {
+                    throw new IOException(mTrace + ":" + lineNumber
+                            + ": expected time,package,group");
+                }
+                final long time;
+                try {
+                    time = Long.parseLong(fields[0].trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(mTrace + ":" + lineNumber + ": bad time", e);
+                }
+                mRequests.add(new Request(time, mNextSequence++, fields[1].trim(),
+                        fields[2].trim(), false));
+                first = Math.min(first, time);
+                last = Math.max(last, time);
+            }
+        } finally {
+            reader.close();
+        }
+        if (mRequests.isEmpty()) {
+            throw new IOException(mTrace + ": no requests");
+        }
+        // Days are counted from midnight UTC before the first request
+        mClock.mNow = first - first % DAY;
+        return last + 1;
+    }
+
+    private Pair pairOf(String packageName, String groupName) {
+        final String key = packageName + '\u0000' + groupName;
+        Pair pair = mPairs.get(key);
+        if (pair == null) {
+            final double threshold = mUsers.nextDouble() < mNever
+                    ? Double.POSITIVE_INFINITY
+                    : mUsers.nextDouble() * LottoTrader.LT_OFFER_CUTOFF;
+            pair = new Pair(packageName, groupName, threshold);
+            mPairs.put(key, pair);
+        }
+        return pair;
+    }
+
+    /** Takes one request through the prompt's decision path, timing all of it */
+    private void handle(Request request, Stats today) throws IOException {
+        final Pair pair = pairOf(request.mPackageName, request.mGroupName);
+        count(today, request.mBurst);
+        if (pair.mGranted) {
+            // Already granted, no prompt
+            today.mAlreadyGranted++;
+            mTotal.mAlreadyGranted++;
+            return;
+        }
+        final String packageName = pair.mPackageName;
+        final String group = pair.mGroupName;
+        final long start = System.nanoTime();
+        mTrader.expireDenials();
+        boolean denied = false;
+        if (mTrader.checkIfDeniedRecently(packageName, group) != -1) {
+            // The prompt only offers Cancel, which addRecentDenial() does not record
+            mTrader.addRecentDenial(packageName, group);
+            today.mTurnedAway++;
+            mTotal.mTurnedAway++;
+        } else {
+            final double offer = mTrader.generateDynamicOffer(packageName, group);
+            boolean accepted = offer >= pair.mThreshold;
+            if (mUsers.nextDouble() < mNoise) {
+                accepted = !accepted;
+            }
+            pair.mPrompted = true;
+            if (accepted) {
+                mTrader.recordGrant(packageName, packageName, group, offer);
+                mTrader.recordOfferDecision(packageName, group, offer, true);
+                mTrader.addToResults(packageName, group, true, offer);
+                pair.mGranted = true;
+                today.mAccepted++;
+                mTotal.mAccepted++;
+            } else if (mTrader.addRecentDenial(packageName, group)) {
+                mTrader.recordDenial(packageName, packageName, group);
+                mTrader.recordOfferDecision(packageName, group, offer, false);
+                mTrader.addToResults(packageName, group, false, offer);
+                denied = true;
+                today.mDenied++;
+                mTotal.mDenied++;
+            }
+        }
+        final long nanos = System.nanoTime() - start;
+        mDecisionNanos += nanos;
+        today.addLatency(nanos);
+        mTotal.addLatency(nanos);
+        if (denied && mTrace == null && mWorld.nextDouble() < mBurst) {
+            queueBurst(request);
+        }
+    }
+
+    private void count(Stats today, boolean burst) {
+        today.mRequests++;
+        mTotal.mRequests++;
+        if (burst) {
+            today.mBursts++;
+            mTotal.mBursts++;
+        }
+    }
+
+    /** The denied app asks again a few times before the wait period is over */
+    private void queueBurst(Request denied) {
+        final int count = 1 + mWorld.nextInt(MAX_BURST);
+        final long waitPeriod = Math.max(1, LottoTrader.DENIED_WAIT_PERIOD);
+        for (int i = 0; i < count; i++) {
+            final long delay = 1 + (long) (mWorld.nextDouble() * (waitPeriod - 1));
+            mRequests.add(new Request(denied.mTime + delay, mNextSequence++,
+                    denied.mPackageName, denied.mGroupName, true));
+        }
+    }
+
+    /** What the revocation scheduler would do by now, taking back triggered grants */
+    private void checkTriggers() {
+        final ArrayList<String[]> fired = new ArrayList<>();
+        final TriggerRuleEngine triggers = mTrader.getTriggers();
+        final TriggerRuleEngine.Listener listener = new TriggerRuleEngine.Listener() {
+            @Override
+            public void onTriggered(String packageName, String groupName, int rule) {
+                fired.add(new String[] { packageName, groupName });
+            }
+        };
+        for (String packageName : triggers.getPackages()) {
+            triggers.checkPackage(packageName, mClock.mNow, listener);
+        }
+        for (String[] revoked : fired) {
+            final Pair pair = mPairs.get(revoked[0] + '\u0000' + revoked[1]);
+            if (pair != null && pair.mGranted) {
+                pair.mGranted = false;
+                mRevocations++;
+            }
+            triggers.onRevoked(revoked[0], revoked[1]);
+        }
+    }
+
+    private void printDay(int day, Stats today) throws IOException, InterruptedException {
+        today.sort();
+        final double[] convergence = convergence();
+        System.out.printf(Locale.US, "%3d  %8d  %12d  %11d  %8d  %6d  %6d  %11.3f  %8.1f%%"
+                + "  %10d%n", day, today.mRequests, today.mAlreadyGranted, today.mTurnedAway,
+                today.mAccepted, today.mDenied,
+                TimeUnit.NANOSECONDS.toMicros(today.percentile(99)), convergence[0],
+                convergence[1] * 100, diskBytes(null));
+    }
+
+    /**
+     * @return The mean distance of the current offers from the thresholds, in dollars, and
+     * the fraction within CONVERGED of the cutoff, over the prompted pairs of users who
+     * accept some offer
+     */
+    private double[] convergence() {
+        final double cutoff = LottoTrader.LT_OFFER_CUTOFF;
+        double error = 0;
+        int converged = 0;
+        int count = 0;
+        for (Pair pair : mPairs.values()) {
+            if (!pair.mPrompted || Double.isInfinite(pair.mThreshold)) {
+                continue;
+            }
+            final double distance = Math.abs(
+                    mTrader.generateDynamicOffer(pair.mPackageName, pair.mGroupName)
+                            - pair.mThreshold);
+            error += distance;
+            if (distance <= CONVERGED * cutoff) {
+                converged++;
+            }
+            count++;
+        }
+        return count == 0 ? new double[] { 0, 0 } : new double[] { error / count,
+                (double) converged / count };
+    }
+
+    /**
+     * Waits for the results to be written and compressed, then adds up the files dir.
+     *
+     * @param byFile Filled with the bytes of each file, unless null
+     */
+    private long diskBytes(HashMap<String, Long> byFile)
+            throws IOException, InterruptedException {
+        mTrader.awaitResults();
+        ResultsSegments.awaitCompression();
+        mTrader.expireDenials();
+        long total = 0;
+        final File[] files = mContext.getFilesDir().listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + mContext.getFilesDir());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                continue;
+            }
+            total += file.length();
+            if (byFile != null) {
+                byFile.put(file.getName(), file.length());
+            }
+        }
+        return total;
+    }
+
+    private void printSummary() throws IOException, InterruptedException {
+        mTotal.sort();
+        final double seconds = mDecisionNanos / 1e9;
+        final HashMap<String, Long> byFile = new HashMap<>();
+        final long bytes = diskBytes(byFile);
+        final double[] convergence = convergence();
+        int never = 0;
+        final HashSet<String> packages = new HashSet<>();
+        for (Pair pair : mPairs.values()) {
+            if (Double.isInfinite(pair.mThreshold)) {
+                never++;
+            }
+            packages.add(pair.mPackageName);
+        }
+
+        System.out.println();
+        System.out.printf(Locale.US, "requests     %d (%d re-requests in a burst), %d apps,"
+                + " %d pairs, %d never accept%n", mTotal.mRequests, mTotal.mBursts,
+                packages.size(), mPairs.size(), never);
+        System.out.printf(Locale.US, "decisions    %d: %d accepted, %d denied, %d turned away"
+                + " during the wait period, %d already granted, %d grants revoked%n",
+                mTotal.mDecisions, mTotal.mAccepted, mTotal.mDenied, mTotal.mTurnedAway,
+                mTotal.mAlreadyGranted, mRevocations);
+        System.out.printf(Locale.US, "throughput   %.0f decisions/s%n",
+                seconds > 0 ? mTotal.mDecisions / seconds : 0);
+        System.out.printf(Locale.US, "latency      p50 %d us, p99 %d us, p99.9 %d us, max %d us"
+                + "%n", TimeUnit.NANOSECONDS.toMicros(mTotal.percentile(50)),
+                TimeUnit.NANOSECONDS.toMicros(mTotal.percentile(99)),
+                TimeUnit.NANOSECONDS.toMicros(mTotal.percentile(99.9)),
+                TimeUnit.NANOSECONDS.toMicros(mTotal.percentile(100)));
+        System.out.printf(Locale.US, "convergence  mean offer error $%.3f, %.1f%% of pairs"
+                + " within $%.2f%n", convergence[0], convergence[1] * 100,
+                CONVERGED * LottoTrader.LT_OFFER_CUTOFF);
+        System.out.printf(Locale.US, "disk         %d bytes in %s%n", bytes,
+                mContext.getFilesDir());
+        final String[] names = byFile.keySet().toArray(new String[byFile.size()]);
+        Arrays.sort(names);
+        for (String name : names) {
+            System.out.printf(Locale.US, "    %-24s %10d%n", name, byFile.get(name));
+        }
+    }
+}